@@ -0,0 +1,72 @@
+package instrumenter;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Microbenchmark of the memory allocated to instrument a class.
+ * <p>
+ * It instruments all the classes of a package several times, in a single
+ * thread, and reports the bytes allocated by that thread per instrumented
+ * class, after a warm-up.
+ * <p>
+ * Usage: {@code AllocationBenchmark <engine> <build path> <package> [counting] [frames] [iterations]}
+ */
+public class AllocationBenchmark {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: AllocationBenchmark <engine> <build path> <package> [counting] [frames] " +
+                    "[iterations]");
+            System.exit(1);
+        }
+        String engine = args[0], packageName = args[2];
+        InstrumentationOptions options = new InstrumentationOptions();
+        options.countingMode = CountingMode.valueOf(args.length > 3 ? args[3].toUpperCase() : "INSTRUCTION");
+        options.frameMode = FrameMode.valueOf(args.length > 4 ? args[4].toUpperCase() : "HIERARCHY");
+        int iterations = args.length > 5 ? Integer.parseInt(args[5]) : 200;
+        // Same level as the command line by default
+        Logger.getRootLogger().setLevel(Level.INFO);
+
+        List<byte[]> classFiles;
+        try (Stream<Path> stream = Files.walk(Paths.get(args[1], packageName))) {
+            classFiles = stream.filter(path -> path.toString().endsWith(".class")).sorted().map(path -> {
+                try {
+                    return Files.readAllBytes(path);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }).collect(Collectors.toList());
+        }
+        ClassHierarchy hierarchy =
+                new ClassHierarchy(List.of(Paths.get(args[1])), ClassLoader.getPlatformClassLoader(), null);
+        Instrumenter instrumenter = new Instrumenter(packageName, Main.loadRules(engine), options, hierarchy);
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up
+        for (int i = 0; i < iterations; i++) {
+            for (byte[] classFile : classFiles) instrumenter.instrument(classFile);
+        }
+        // Measure
+        long allocated = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (byte[] classFile : classFiles) instrumenter.instrument(classFile);
+        }
+        long nanos = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+        long classes = (long) iterations * classFiles.size();
+        System.out.printf("%s %s: %d classes, %d bytes/class, %.1f us/class%n", options.countingMode,
+                options.frameMode, classFiles.size(), allocated / classes, nanos / 1e3 / classes);
+    }
+}
@@ -0,0 +1,20 @@
+package benchbot;
+
+/**
+ * A turn of a bot: scanning the map, finding paths and managing its units.
+ */
+public class Bot {
+    public static int run(int seed) {
+        Grid grid = new Grid(24, 24, seed);
+        int best = grid.bestCell(2);
+        PathFinder pathFinder = new PathFinder();
+        int distance = pathFinder.distance(grid, 0, 0, best / grid.height(), best % grid.height());
+        Squad squad = new Squad();
+        for (int i = 0; i < 40; i++) squad.add(i % 4, grid.get(i % 24, 0) % 24, i % 24, 10 + i);
+        return best + distance + squad.closestTo(12, 12) + squad.plan() + fibonacci(12);
+    }
+
+    private static int fibonacci(int n) {
+        return n < 2 ? n : fibonacci(n - 1) + fibonacci(n - 2);
+    }
+}
@@ -0,0 +1,60 @@
+package benchbot;
+
+/**
+ * Scans of a map, as bots do to find resources or enemies around them.
+ */
+public class Grid {
+    private final int[][] cells;
+
+    public Grid(int width, int height, int seed) {
+        cells = new int[width][height];
+        int value = seed;
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                value = value * 1103515245 + 12345;
+                cells[x][y] = (value >>> 16) % 100;
+            }
+        }
+    }
+
+    public int width() {
+        return cells.length;
+    }
+
+    public int height() {
+        return cells[0].length;
+    }
+
+    public int get(int x, int y) {
+        return cells[x][y];
+    }
+
+    public boolean isBlocked(int x, int y) {
+        return cells[x][y] > 80;
+    }
+
+    /**
+     * Returns the cell with the highest sum of its neighbourhood, as
+     * {@code x * height + y}.
+     */
+    public int bestCell(int radius) {
+        int best = -1, bestValue = Integer.MIN_VALUE;
+        for (int x = 0; x < cells.length; x++) {
+            for (int y = 0; y < cells[x].length; y++) {
+                int value = 0;
+                for (int dx = -radius; dx <= radius; dx++) {
+                    for (int dy = -radius; dy <= radius; dy++) {
+                        int nx = x + dx, ny = y + dy;
+                        if (nx < 0 || ny < 0 || nx >= cells.length || ny >= cells[x].length) continue;
+                        value += cells[nx][ny];
+                    }
+                }
+                if (value > bestValue) {
+                    bestValue = value;
+                    best = x * cells[x].length + y;
+                }
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,38 @@
+package benchbot;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Breadth-first search over a grid, the typical path finding of bots.
+ */
+public class PathFinder {
+    private final int[] dx = {1, -1, 0, 0};
+    private final int[] dy = {0, 0, 1, -1};
+
+    /**
+     * Returns the distance between two cells, or -1 if there is no path.
+     */
+    public int distance(Grid grid, int fromX, int fromY, int toX, int toY) {
+        int width = grid.width(), height = grid.height();
+        int[] dist = new int[width * height];
+        Arrays.fill(dist, -1);
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        dist[fromX * height + fromY] = 0;
+        queue.add(fromX * height + fromY);
+        while (!queue.isEmpty()) {
+            int cell = queue.poll();
+            int x = cell / height, y = cell % height;
+            if (x == toX && y == toY) return dist[cell];
+            for (int i = 0; i < 4; i++) {
+                int nx = x + dx[i], ny = y + dy[i];
+                if (nx < 0 || ny < 0 || nx >= width || ny >= height || grid.isBlocked(nx, ny)) continue;
+                int next = nx * height + ny;
+                if (dist[next] != -1) continue;
+                dist[next] = dist[cell] + 1;
+                queue.add(next);
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,67 @@
+package benchbot;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Management of a group of units: sorting by distance, picking targets and
+ * counting by type.
+ */
+public class Squad {
+    private final List<Member> members = new ArrayList<>();
+
+    public void add(int type, int x, int y, int health) {
+        members.add(new Member(type, x, y, health));
+    }
+
+    public int closestTo(int x, int y) {
+        List<Member> sorted = new ArrayList<>(members);
+        sorted.sort(new Comparator<Member>() {
+            @Override
+            public int compare(Member a, Member b) {
+                return Integer.compare(a.distance(x, y), b.distance(x, y));
+            }
+        });
+        return sorted.isEmpty() ? -1 : sorted.get(0).distance(x, y);
+    }
+
+    public int plan() {
+        Map<Integer, Integer> byType = new HashMap<>();
+        int score = 0;
+        for (Member member : members) {
+            byType.put(member.type, byType.getOrDefault(member.type, 0) + 1);
+            switch (member.type) {
+                case 0:
+                    score += member.health;
+                    break;
+                case 1:
+                    score += 2 * member.health;
+                    break;
+                case 2:
+                    score -= member.x + member.y;
+                    break;
+                default:
+                    score++;
+            }
+        }
+        return score + byType.size();
+    }
+
+    private static final class Member {
+        final int type, x, y, health;
+
+        Member(int type, int x, int y, int health) {
+            this.type = type;
+            this.x = x;
+            this.y = y;
+            this.health = health;
+        }
+
+        int distance(int toX, int toY) {
+            return Math.abs(x - toX) + Math.abs(y - toY);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package calibration;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Workloads of the calibration of the costs (see
+ * {@code instrumenter.CostCalibration}), written like a bot: each one invokes
+ * its target method once, on inputs prepared by the constructor, and returns
+ * something that depends on the result.
+ * <p>
+ * The name of a workload is its target ({@code <owner>/<name>}) with
+ * {@code $} instead of {@code /}. The time of any other method a workload
+ * invokes is attributed to its target, so they are kept to a minimum. Two
+ * workloads have no target: {@code empty}, which does nothing, and
+ * {@code baseline}, a kernel of plain bytecodes (arithmetic, arrays, fields,
+ * branches and a call).
+ */
+public class Workloads {
+    private final int[] values = new int[1024], sorted = new int[1024];
+    private final String[] strings = new String[1024];
+    private final HashMap<Integer, Integer> hashMap = new HashMap<>();
+    private final HashSet<Integer> hashSet = new HashSet<>();
+    private final TreeMap<Integer, Integer> treeMap = new TreeMap<>();
+    private final ArrayList<Integer> arrayList = new ArrayList<>();
+    private final BitSet bitSet = new BitSet(1024);
+    private final Random random = new Random(42);
+    private int accumulator;
+
+    public Workloads() {
+        for (int i = 0; i < 1024; i++) {
+            int value = random.nextInt();
+            values[i] = value;
+            sorted[i] = i * 3;
+            strings[i] = Integer.toString(value);
+            hashMap.put(i * 7, i);
+            hashSet.add(i * 7);
+            treeMap.put(i * 7, i);
+            arrayList.add(i);
+            if ((value & 1) == 0) bitSet.set(i);
+        }
+    }
+
+    public int empty(int seed) {
+        return seed;
+    }
+
+    public int baseline(int seed) {
+        int sum = seed;
+        for (int i = 0; i < 64; i++) {
+            int value = values[(seed + i) & 1023];
+            if (value > sum) {
+                sum += value >>> 3;
+            } else {
+                sum ^= value * 31;
+            }
+            accumulator += mix(sum);
+        }
+        return sum;
+    }
+
+    private static int mix(int value) {
+        return value ^ (value >>> 16);
+    }
+
+    public int java$lang$Math$sqrt(int seed) {
+        return (int) Math.sqrt(seed & 0x7FFFFFFF);
+    }
+
+    public int java$lang$Math$sin(int seed) {
+        return (int) (Math.sin(seed) * 1000);
+    }
+
+    public int java$lang$Math$atan2(int seed) {
+        return (int) (Math.atan2(seed, values[seed & 1023]) * 1000);
+    }
+
+    public int java$lang$Math$pow(int seed) {
+        return (int) Math.pow(seed & 0xFF, 1.5);
+    }
+
+    public int java$lang$Math$hypot(int seed) {
+        return (int) Math.hypot(seed, values[seed & 1023]);
+    }
+
+    public int java$lang$Math$floorMod(int seed) {
+        return Math.floorMod(seed, 1000);
+    }
+
+    public int java$lang$Integer$toString(int seed) {
+        return Integer.toString(seed).length();
+    }
+
+    public int java$lang$Integer$parseInt(int seed) {
+        return Integer.parseInt(strings[seed & 1023]);
+    }
+
+    public int java$lang$String$equals(int seed) {
+        return strings[seed & 1023].equals(strings[(seed + 1) & 1023]) ? 1 : 0;
+    }
+
+    public int java$lang$String$charAt(int seed) {
+        return strings[seed & 1023].charAt(0);
+    }
+
+    public int java$util$HashMap$get(int seed) {
+        Integer value = hashMap.get((seed & 1023) * 7);
+        return value != null ? value : 0;
+    }
+
+    public int java$util$HashMap$containsKey(int seed) {
+        return hashMap.containsKey(seed & 1023) ? 1 : 0;
+    }
+
+    public int java$util$HashMap$put(int seed) {
+        Integer value = hashMap.put((seed & 1023) * 7, seed);
+        return value != null ? value : 0;
+    }
+
+    public int java$util$HashSet$contains(int seed) {
+        return hashSet.contains(seed & 1023) ? 1 : 0;
+    }
+
+    public int java$util$TreeMap$get(int seed) {
+        Integer value = treeMap.get((seed & 1023) * 7);
+        return value != null ? value : 0;
+    }
+
+    public int java$util$TreeMap$floorKey(int seed) {
+        Integer key = treeMap.floorKey(seed & 0x1FFF);
+        return key != null ? key : 0;
+    }
+
+    public int java$util$ArrayList$get(int seed) {
+        return arrayList.get(seed & 1023);
+    }
+
+    public int java$util$ArrayList$set(int seed) {
+        return arrayList.set(seed & 1023, seed);
+    }
+
+    public int java$util$BitSet$get(int seed) {
+        return bitSet.get(seed & 1023) ? 1 : 0;
+    }
+
+    public int java$util$BitSet$nextSetBit(int seed) {
+        return bitSet.nextSetBit(seed & 1023);
+    }
+
+    public int java$util$Random$nextInt(int seed) {
+        return random.nextInt(seed & 0xFFFF | 1);
+    }
+
+    public int java$util$Arrays$binarySearch(int seed) {
+        return Arrays.binarySearch(sorted, seed & 0xFFF);
+    }
+
+    public int java$util$stream$IntStream$sum(int seed) {
+        return IntStream.range(seed & 0xF, 32).sum();
+    }
+}
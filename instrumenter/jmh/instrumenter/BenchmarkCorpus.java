@@ -0,0 +1,73 @@
+package instrumenter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Corpus of bot classes used by the benchmarks: the package {@code benchbot},
+ * compiled together with the benchmarks, whose class files are read from the
+ * class path.
+ */
+final class BenchmarkCorpus {
+    static final String PACKAGE = "benchbot";
+    static final String[] CLASSES = {"Bot", "Grid", "PathFinder", "Squad", "Squad$1", "Squad$Member"};
+    /**
+     * Number of classes of the corpus, as a constant for
+     * {@code @OperationsPerInvocation}.
+     */
+    static final int SIZE = 6;
+
+    private BenchmarkCorpus() {
+    }
+
+    /**
+     * Reads the class files of the corpus, by internal name.
+     */
+    static Map<String, byte[]> load() throws IOException {
+        Map<String, byte[]> classFiles = new LinkedHashMap<>();
+        for (String className : CLASSES) {
+            String name = PACKAGE + "/" + className;
+            try (InputStream in = BenchmarkCorpus.class.getClassLoader().getResourceAsStream(name + ".class")) {
+                if (in == null) throw new IOException("Unable to find class `" + name + "`");
+                classFiles.put(name, in.readAllBytes());
+            }
+        }
+        return classFiles;
+    }
+
+    static Instrumenter newInstrumenter(CountingMode countingMode, FrameMode frameMode) throws IOException {
+        ClassHierarchy hierarchy = new ClassHierarchy(List.of(), BenchmarkCorpus.class.getClassLoader(), null);
+        InstrumentationOptions options = new InstrumentationOptions();
+        options.countingMode = countingMode;
+        options.frameMode = frameMode;
+        return new Instrumenter(PACKAGE, Main.loadRules("pirates"), options, hierarchy);
+    }
+
+    /**
+     * Class loader that defines the classes of the corpus from the given
+     * class files, instead of taking them from the class path.
+     */
+    static final class Loader extends ClassLoader {
+        private final Map<String, byte[]> classFiles;
+
+        Loader(Map<String, byte[]> classFiles) {
+            super(BenchmarkCorpus.class.getClassLoader());
+            this.classFiles = classFiles;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            byte[] classFile = classFiles.get(name.replace('.', '/'));
+            if (classFile == null) return super.loadClass(name, resolve);
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c == null) c = defineClass(name, classFile, 0, classFile.length);
+                if (resolve) resolveClass(c);
+                return c;
+            }
+        }
+    }
+}
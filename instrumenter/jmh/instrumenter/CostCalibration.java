@@ -0,0 +1,159 @@
+package instrumenter;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import pirates.threading.ThreadManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Calibration of the bytecodes costs of methods, from the results of
+ * {@link CostCalibrationBenchmark}.
+ * <p>
+ * The cost of a bytecode is the time of the {@code baseline} workload, minus
+ * the time of the {@code empty} one, divided by the bytecodes it is charged.
+ * The cost of a method is then the time of its workload, minus the time of the
+ * {@code empty} one, in bytecodes, minus the other bytecodes charged to the
+ * workload. The bytecodes charged to each workload are counted by running it
+ * instrumented, without any cost (every method costs 1), with the stub of the
+ * thread manager of the engine.
+ * <p>
+ * The confidence intervals of the benchmark (99.9% by default) are propagated
+ * to the costs, taking the extremes of the times. The costs are written to the
+ * cost table, replacing the costs of the methods calibrated and keeping the
+ * rest (e.g., the methods of the engine API), with their interval in a
+ * comment: {@code <owner>/<name> <cost> # [<low>, <high>]}.
+ * <p>
+ * Usage: {@code CostCalibration <JMH results (JSON)> <cost table> [output]}
+ */
+public class CostCalibration {
+    private static final String PACKAGE = "calibration", WORKLOADS = PACKAGE + "/Workloads";
+    private static final String EMPTY = "empty", BASELINE = "baseline";
+    /**
+     * Invocations of each workload to count its bytecodes.
+     */
+    private static final int INVOCATIONS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: CostCalibration <JMH results (JSON)> <cost table> [output]");
+            System.exit(1);
+        }
+        Logger.getRootLogger().setLevel(Level.WARN);
+        Map<String, double[]> times = readTimes(Paths.get(args[0]));
+        if (!times.containsKey(EMPTY) || !times.containsKey(BASELINE)) {
+            System.err.println("The results must include the workloads `" + EMPTY + "` and `" + BASELINE + "`");
+            System.exit(1);
+        }
+        Map<String, Double> bytecodes = countBytecodes(times.keySet());
+
+        // Nanoseconds per bytecode: score, low and high
+        double[] empty = times.get(EMPTY), baseline = times.get(BASELINE);
+        double baselineBytecodes = bytecodes.get(BASELINE) - bytecodes.get(EMPTY);
+        double[] bytecode = {(baseline[0] - empty[0]) / baselineBytecodes,
+                (baseline[1] - empty[2]) / baselineBytecodes, (baseline[2] - empty[1]) / baselineBytecodes};
+        if (bytecode[1] <= 0) {
+            System.err.println("The baseline is not distinguishable from the empty workload");
+            System.exit(1);
+        }
+        System.out.printf("Bytecode: %.3f ns [%.3f, %.3f]%n", bytecode[0], bytecode[1], bytecode[2]);
+
+        Map<String, String> costs = new TreeMap<>();
+        for (Map.Entry<String, double[]> entry : times.entrySet()) {
+            String workload = entry.getKey();
+            if (workload.equals(EMPTY) || workload.equals(BASELINE)) continue;
+            double[] time = entry.getValue();
+            // Bytecodes charged besides the invocation of the target, which costs 1
+            double others = bytecodes.get(workload) - bytecodes.get(EMPTY) - 1;
+            double cost = (time[0] - empty[0]) / bytecode[0] - others;
+            double low = (time[1] - empty[2]) / bytecode[2] - others;
+            double high = (time[2] - empty[1]) / bytecode[1] - others;
+            String method = workload.replace('$', '/');
+            costs.put(method, String.format(Locale.ROOT, "%s %d # [%.1f, %.1f]", method,
+                    Math.max(1, Math.round(cost)), low, high));
+            System.out.println(costs.get(method));
+        }
+        Path table = Paths.get(args[1]);
+        writeTable(table, args.length > 2 ? Paths.get(args[2]) : table, costs);
+    }
+
+    /**
+     * Reads the time of each workload from the results of JMH, in
+     * nanoseconds: score, low and high.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, double[]> readTimes(Path results) throws IOException {
+        Map<String, double[]> times = new LinkedHashMap<>();
+        for (Object result : (List<Object>) Json.parse(Files.readString(results))) {
+            Map<String, Object> benchmark = (Map<String, Object>) result;
+            if (!((String) benchmark.get("benchmark")).startsWith(CostCalibrationBenchmark.class.getName())) continue;
+            String workload = (String) ((Map<String, Object>) benchmark.get("params")).get("workload");
+            Map<String, Object> metric = (Map<String, Object>) benchmark.get("primaryMetric");
+            if (!"ns/op".equals(metric.get("scoreUnit"))) {
+                throw new IllegalArgumentException("Unexpected unit `" + metric.get("scoreUnit") + "`");
+            }
+            List<Object> confidence = (List<Object>) metric.get("scoreConfidence");
+            times.put(workload, new double[]{(Double) metric.get("score"), (Double) confidence.get(0),
+                    (Double) confidence.get(1)});
+        }
+        return times;
+    }
+
+    /**
+     * Counts the bytecodes charged to each workload, on average.
+     */
+    private static Map<String, Double> countBytecodes(Set<String> workloads) throws Exception {
+        EngineProfile profile = EngineProfile.load("pirates");
+        profile.methodBytecodeCosts.clear();
+        profile.dynamicCosts.clear();
+        InstrumentationOptions options = new InstrumentationOptions();
+        options.countingMode = CountingMode.INSTRUCTION;
+        ClassHierarchy hierarchy = new ClassHierarchy(List.of(), CostCalibration.class.getClassLoader(), null);
+        Instrumenter instrumenter = new Instrumenter(PACKAGE, new RuleSet(profile), options, hierarchy);
+        byte[] classFile;
+        try (InputStream in = CostCalibration.class.getClassLoader().getResourceAsStream(WORKLOADS + ".class")) {
+            if (in == null) throw new IOException("Unable to find class `" + WORKLOADS + "`");
+            classFile = instrumenter.instrument(in.readAllBytes());
+        }
+        Class<?> c = new BenchmarkCorpus.Loader(Map.of(WORKLOADS, classFile)).loadClass(WORKLOADS.replace('/', '.'));
+        Object instance = c.getConstructor().newInstance();
+        Map<String, Double> bytecodes = new HashMap<>();
+        for (String workload : workloads) {
+            Method method = c.getMethod(workload, int.class);
+            long start = ThreadManager.getBytecodes();
+            for (int seed = 0; seed < INVOCATIONS; seed++) method.invoke(instance, seed);
+            bytecodes.put(workload, (double) (ThreadManager.getBytecodes() - start) / INVOCATIONS);
+        }
+        return bytecodes;
+    }
+
+    /**
+     * Writes the cost table, replacing the lines of the methods calibrated and
+     * adding the new ones at the end.
+     */
+    private static void writeTable(Path input, Path output, Map<String, String> costs) throws IOException {
+        List<String> lines = new ArrayList<>();
+        Set<String> pending = new TreeSet<>(costs.keySet());
+        if (Files.exists(input)) {
+            for (String line : Files.readAllLines(input, StandardCharsets.UTF_8)) {
+                String method = line.trim().split("\\s+", 2)[0];
+                if (costs.containsKey(method)) {
+                    // Once, even if the table repeats it
+                    if (pending.remove(method)) lines.add(costs.get(method));
+                } else {
+                    lines.add(line);
+                }
+            }
+        }
+        if (!pending.isEmpty()) lines.add("# Calibrated with CostCalibration: <owner>/<name> <cost> # [<low>, <high>]");
+        for (String method : pending) lines.add(costs.get(method));
+        Files.write(output, lines, StandardCharsets.UTF_8);
+    }
+}
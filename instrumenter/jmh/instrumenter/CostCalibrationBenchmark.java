@@ -0,0 +1,50 @@
+package instrumenter;
+
+import calibration.Workloads;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the time of each workload of the calibration of the costs (see
+ * {@code calibration.Workloads}), without instrumentation, from which
+ * {@link CostCalibration} computes the costs.
+ * <p>
+ * E.g.: {@code gradle jmh -PjmhIncludes=CostCalibration}, and then
+ * {@code gradle instrumenter-calibrate}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class CostCalibrationBenchmark {
+    @Param({"empty", "baseline", "java$lang$Math$sqrt", "java$lang$Math$sin", "java$lang$Math$atan2",
+            "java$lang$Math$pow", "java$lang$Math$hypot", "java$lang$Math$floorMod", "java$lang$Integer$toString",
+            "java$lang$Integer$parseInt", "java$lang$String$equals", "java$lang$String$charAt",
+            "java$util$HashMap$get", "java$util$HashMap$containsKey", "java$util$HashMap$put",
+            "java$util$HashSet$contains", "java$util$TreeMap$get", "java$util$TreeMap$floorKey",
+            "java$util$ArrayList$get", "java$util$ArrayList$set", "java$util$BitSet$get",
+            "java$util$BitSet$nextSetBit", "java$util$Random$nextInt", "java$util$Arrays$binarySearch",
+            "java$util$stream$IntStream$sum"})
+    public String workload;
+
+    private MethodHandle handle;
+    private int seed;
+
+    @Setup
+    public void setup() throws Exception {
+        handle = MethodHandles.publicLookup().findVirtual(Workloads.class, workload,
+                MethodType.methodType(int.class, int.class)).bindTo(new Workloads());
+    }
+
+    @Benchmark
+    public int workload() throws Throwable {
+        // A different input per invocation, so that it isn't constant-folded
+        return (int) handle.invokeExact(seed++);
+    }
+}
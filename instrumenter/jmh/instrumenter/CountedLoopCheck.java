@@ -0,0 +1,83 @@
+package instrumenter;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import pirates.threading.ThreadManager;
+
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Check of the charges of the counted loops (see {@link CountedLoop}) and of
+ * the local counter: every method of {@code loopbot.Loops} must be charged the
+ * same bytecodes counting in a local variable, with the loops hoisted or not,
+ * as counting by blocks without hoisting them, for any number of iterations,
+ * whichever way the method is left (the end, a jump or an exception).
+ * <p>
+ * Exits with status 1 if any charge differs.
+ */
+public final class CountedLoopCheck {
+    private static final String CLASS_NAME = "loopbot/Loops";
+    private static final String[] METHODS = {"complete", "breaks", "returns", "caught", "thrown", "straight"};
+    private static final int[] ITERATIONS = {0, 1, 5, 11, 100_000_000};
+
+    private CountedLoopCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Logger.getRootLogger().setLevel(Level.WARN);
+        byte[] classFile;
+        try (InputStream in = CountedLoopCheck.class.getClassLoader().getResourceAsStream(CLASS_NAME + ".class")) {
+            if (in == null) throw new IllegalStateException("Unable to find class `" + CLASS_NAME + "`");
+            classFile = in.readAllBytes();
+        }
+        boolean failed = false;
+        Class<?> counted = load(classFile, CountingMode.BLOCK, false);
+        // Counting mode and whether the loops are hoisted
+        Object[][] variants = {{CountingMode.LOCAL, false}, {CountingMode.BLOCK, true}, {CountingMode.LOCAL, true}};
+        for (Object[] variant : variants) {
+            CountingMode countingMode = (CountingMode) variant[0];
+            boolean hoistLoops = (Boolean) variant[1];
+            Class<?> checked = load(classFile, countingMode, hoistLoops);
+            for (String method : METHODS) {
+                for (int n : ITERATIONS) {
+                    long expected = charge(counted, method, n), actual = charge(checked, method, n);
+                    if (expected == actual) continue;
+                    System.err.println(countingMode + (hoistLoops ? " hoisting loops " : " ") + method + "(" + n +
+                            "): charged " + actual + " bytecodes, instead of " + expected);
+                    failed = true;
+                }
+            }
+        }
+        if (failed) System.exit(1);
+        System.out.println("The local counter and the hoisted loops are charged the same as the blocks");
+    }
+
+    private static Class<?> load(byte[] classFile, CountingMode countingMode, boolean hoistLoops) throws Exception {
+        InstrumentationOptions options = new InstrumentationOptions();
+        options.countingMode = countingMode;
+        options.hoistLoops = hoistLoops;
+        ClassHierarchy hierarchy = new ClassHierarchy(List.of(), CountedLoopCheck.class.getClassLoader(), null);
+        Instrumenter instrumenter = new Instrumenter("loopbot", Main.loadRules("pirates"), options, hierarchy);
+        byte[] instrumented = instrumenter.instrument(classFile);
+        return new BenchmarkCorpus.Loader(Map.of(CLASS_NAME, instrumented)).loadClass(CLASS_NAME.replace('/', '.'));
+    }
+
+    /**
+     * Returns the bytecodes charged by an invocation of a method, whether it
+     * returns or throws.
+     */
+    private static long charge(Class<?> loops, String name, int n) throws Exception {
+        Method method = loops.getMethod(name, int.class);
+        long before = ThreadManager.getBytecodes();
+        try {
+            method.invoke(null, n);
+        } catch (InvocationTargetException e) {
+            if (!(e.getCause() instanceof ArrayIndexOutOfBoundsException)) throw e;
+        }
+        return ThreadManager.getBytecodes() - before;
+    }
+}
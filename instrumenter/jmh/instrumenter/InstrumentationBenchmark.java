@@ -0,0 +1,49 @@
+package instrumenter;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the instrumentation throughput, in classes per second, over the
+ * corpus of bot classes, for each counting and frame mode.
+ * <p>
+ * The allocation per class is reported by the {@code gc} profiler, as
+ * {@code gc.alloc.rate.norm}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InstrumentationBenchmark {
+    @Param({"instruction", "block", "local"})
+    public String counting;
+
+    @Param({"hierarchy", "keep"})
+    public String frames;
+
+    private Instrumenter instrumenter;
+    private List<byte[]> classFiles;
+
+    @Setup
+    public void setup() throws IOException {
+        Logger.getRootLogger().setLevel(Level.WARN);
+        instrumenter = BenchmarkCorpus.newInstrumenter(CountingMode.valueOf(counting.toUpperCase()),
+                FrameMode.valueOf(frames.toUpperCase()));
+        classFiles = new ArrayList<>(BenchmarkCorpus.load().values());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkCorpus.SIZE)
+    public void instrument(Blackhole blackhole) {
+        for (byte[] classFile : classFiles) blackhole.consume(instrumenter.instrument(classFile));
+    }
+}
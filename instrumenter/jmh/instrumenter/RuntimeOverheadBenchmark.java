@@ -0,0 +1,53 @@
+package instrumenter;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the time of a bot turn (see {@code benchbot.Bot}), without
+ * instrumentation ({@code none}) and instrumented with each counting mode, so
+ * the slowdown of the instrumented code can be compared.
+ * <p>
+ * The bytecodes are charged to a stub of the thread manager of the engine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RuntimeOverheadBenchmark {
+    @Param({"none", "instruction", "block", "local"})
+    public String counting;
+
+    private MethodHandle turn;
+    private int seed = 42;
+
+    @Setup
+    public void setup() throws Exception {
+        Logger.getRootLogger().setLevel(Level.WARN);
+        Map<String, byte[]> classFiles = BenchmarkCorpus.load();
+        if (!counting.equals("none")) {
+            Instrumenter instrumenter = BenchmarkCorpus.newInstrumenter(CountingMode.valueOf(counting.toUpperCase()),
+                    FrameMode.HIERARCHY);
+            Map<String, byte[]> instrumented = new LinkedHashMap<>();
+            classFiles.forEach((name, classFile) -> instrumented.put(name, instrumenter.instrument(classFile)));
+            classFiles = instrumented;
+        }
+        Class<?> bot = new BenchmarkCorpus.Loader(classFiles).loadClass(BenchmarkCorpus.PACKAGE + ".Bot");
+        turn = MethodHandles.publicLookup().findStatic(bot, "run", MethodType.methodType(int.class, int.class));
+    }
+
+    @Benchmark
+    public int turn() throws Throwable {
+        return (int) turn.invokeExact(seed);
+    }
+}
@@ -0,0 +1,72 @@
+package loopbot;
+
+/**
+ * Counted loops that are left in every way, and straight-line code left by an
+ * implicit exception, checked by
+ * {@code instrumenter.CountedLoopCheck}: each method takes the number of
+ * iterations, and its array has only 11 elements (the bots can't have static
+ * fields).
+ */
+public class Loops {
+    public static int complete(int n) {
+        int sum = 0;
+        for (int i = 0; i < n; i++) sum += i;
+        return sum;
+    }
+
+    public static int breaks(int n) {
+        int[] values = new int[11];
+        int i;
+        for (i = 0; i < n; i++) {
+            if (i == 7) break;
+            values[i % 11]++;
+        }
+        return i;
+    }
+
+    public static int returns(int n) {
+        int[] values = new int[11];
+        for (int i = 0; i < n; i++) {
+            if (values[i % 11] < 0) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Left by an exception caught by the method itself.
+     */
+    public static int caught(int n) {
+        int[] values = new int[11];
+        int sum = 0;
+        try {
+            for (int i = 0; i < n; i++) sum += values[i];
+        } catch (ArrayIndexOutOfBoundsException e) {
+            sum = -1;
+        }
+        return sum;
+    }
+
+    /**
+     * Left by an exception thrown out of the method.
+     */
+    public static int thrown(int n) {
+        int[] values = new int[11];
+        int sum = 0;
+        for (int i = 0; i < n; i++) sum += values[i];
+        return sum;
+    }
+
+    /**
+     * Straight-line code, without loops, left by an implicit exception thrown
+     * out of the method (from 11 iterations on), which doesn't flush the local
+     * counter by itself.
+     */
+    public static int straight(int n) {
+        int[] values = new int[11];
+        // A new block, so that its counter isn't flushed by the allocation
+        if (n < 0) return -1;
+        int a = n * 3, b = a ^ n, c = a + b, d = c * c, e = d - a, f = e / 7 + b;
+        values[n] = a + b + c + d + e + f;
+        return values[0];
+    }
+}
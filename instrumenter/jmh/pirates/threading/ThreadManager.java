@@ -0,0 +1,20 @@
+package pirates.threading;
+
+/**
+ * Stub of the thread manager of the engine, which only counts the bytecodes
+ * charged by the instrumented code, as cheaply as the real one when the bot
+ * is still within its budget.
+ */
+public class ThreadManager {
+    private static long bytecodes;
+    private static long limit = Long.MAX_VALUE;
+
+    public static void addBytecodes(int n) {
+        bytecodes += n;
+        if (bytecodes > limit) throw new IllegalStateException("Bytecodes limit exceeded");
+    }
+
+    public static long getBytecodes() {
+        return bytecodes;
+    }
+}
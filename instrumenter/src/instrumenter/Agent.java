@@ -0,0 +1,102 @@
+package instrumenter;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Java agent to instrument the package while its classes are loaded, instead
+ * of ahead of time. The classes are instrumented in memory, so there is no
+ * need to write and read the instrumented package from disk, and only the
+ * classes actually loaded are instrumented.
+ * <p>
+ * Usage: {@code java -javaagent:instrumenter.jar=engine=<engine>,package=<package> ...}
+ * <p>
+ * Arguments, separated by commas:
+ * - {@code engine}: Engine, or engine profile file (see {@link EngineProfile}).
+ * - {@code package}: Package. Only its classes are instrumented.
+ * - {@code counting} (optional): Bytecodes counting (instruction, block, local).
+ * - {@code frames} (optional): Stack map frames (compute, hierarchy, keep).
+ * - {@code debug} (optional): Debug attributes kept (keep, lines, strip).
+ * - {@code profile} (optional): Site table file. Counts the executions of each
+ * basic block (see {@link SiteTable}).
+ * - {@code charge-stubs} (optional): Whether to share the counters of each
+ * class through static methods (true, false).
+ * - {@code hoist-loops} (optional): Whether to charge the counted loops once
+ * before entering them (true, false).
+ * - {@code inline-budget} (optional): Whether to check the budget of the
+ * engine inline (true, false).
+ * - {@code size-budget} (optional): Code size over which an instrumented method
+ * is reported (0 to disable it).
+ * - {@code size-budget-fail} (optional): Whether a method over the size budget
+ * fails the definition of its class (true, false).
+ * - {@code verbose} (optional): Verbose level (error, warn, info, debug).
+ */
+public class Agent {
+    private static final Logger log = LogManager.getRootLogger();
+
+    public static void premain(String agentArgs, Instrumentation instrumentation) throws IOException {
+        // Parse arguments
+        Map<String, String> args = parseArguments(agentArgs);
+        String engine = getArgument(args, "engine", null);
+        String packageName = getArgument(args, "package", null);
+        InstrumentationOptions options = new InstrumentationOptions();
+        options.countingMode = CountingMode.valueOf(getArgument(args, "counting", "instruction").toUpperCase());
+        options.frameMode = FrameMode.valueOf(getArgument(args, "frames", "hierarchy").toUpperCase());
+        options.debugMode = DebugMode.valueOf(getArgument(args, "debug", "keep").toUpperCase());
+        String profilePath = getArgument(args, "profile", "");
+        options.profile = !profilePath.isEmpty();
+        options.chargeStubs = Boolean.parseBoolean(getArgument(args, "charge-stubs", "false"));
+        options.hoistLoops = Boolean.parseBoolean(getArgument(args, "hoist-loops", "false"));
+        options.inlineBudget = Boolean.parseBoolean(getArgument(args, "inline-budget", "false"));
+        options.sizeBudget = Integer.parseInt(getArgument(args, "size-budget", "8000"));
+        options.failOverBudget = Boolean.parseBoolean(getArgument(args, "size-budget-fail", "false"));
+
+        // Set logger level
+        Logger.getRootLogger().setLevel(Level.toLevel(getArgument(args, "verbose", "INFO")));
+
+        // Load resources and register the transformer
+        Instrumenter instrumenter =
+                new Instrumenter(packageName, Main.loadRules(engine), options, ClassHierarchy.ofPlatform());
+        Path siteTableFile = null;
+        if (options.profile) {
+            siteTableFile = Paths.get(profilePath);
+            Files.writeString(siteTableFile, SiteTable.HEADER);
+        }
+        instrumentation.addTransformer(new InstrumentationTransformer(instrumenter, siteTableFile));
+        log.info("Instrumenting package `" + packageName + "` at load time");
+    }
+
+    public static void agentmain(String agentArgs, Instrumentation instrumentation) throws IOException {
+        premain(agentArgs, instrumentation);
+    }
+
+    private static Map<String, String> parseArguments(String agentArgs) {
+        Map<String, String> args = new HashMap<>();
+        if (agentArgs == null) return args;
+        for (String arg : agentArgs.split(",")) {
+            if (arg.isBlank()) continue;
+            int indexEquals = arg.indexOf('=');
+            if (indexEquals == -1) throw new IllegalArgumentException("Invalid agent argument `" + arg + "`");
+            args.put(arg.substring(0, indexEquals).trim(), arg.substring(indexEquals + 1).trim());
+        }
+        return args;
+    }
+
+    private static String getArgument(Map<String, String> args, String name, String defaultValue) {
+        String value = args.get(name);
+        if (value == null) {
+            if (defaultValue == null) throw new IllegalArgumentException("Missing agent argument `" + name + "`");
+            return defaultValue;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,42 @@
+package instrumenter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class to store a basic block of a method: a sequence of recorded nodes that
+ * is always executed from the first to the last one.
+ * <p>
+ * The bytecodes counter of the block is injected right before its first
+ * non-pseudo node (the entry), so it is charged when the control enters the
+ * block, and not after every instruction.
+ */
+final class BasicBlock {
+    final int index;
+    /**
+     * Index of the first node of the block.
+     */
+    final int start;
+    /**
+     * Index of the node after the last node of the block.
+     */
+    int end;
+    /**
+     * Index of the node before which the bytecodes counter is injected.
+     */
+    int entry;
+    /**
+     * Bytecodes charged by the per-instruction instrumentation while executing
+     * the block.
+     */
+    int cost;
+    boolean reachable;
+    boolean handler;
+    final List<BasicBlock> successors = new ArrayList<>();
+    final List<BasicBlock> exceptionSuccessors = new ArrayList<>();
+
+    BasicBlock(int index, int start) {
+        this.index = index;
+        this.start = start;
+    }
+}
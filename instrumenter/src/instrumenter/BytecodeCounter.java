@@ -0,0 +1,82 @@
+package instrumenter;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Class to emit the increments of the bytecodes count, either through the
+ * counter of the engine or, with an inline budget, checking the budget of the
+ * engine in place.
+ * <p>
+ * The counter of the engine is a static method, invoked on every charge.
+ * With an inline budget, the charge is subtracted from the budget field of
+ * the engine, and its slow path is only invoked when the budget goes below 0:
+ * {@code if ((budget -= bytecodes) < 0) slowPath();}. The JIT compiler sees a
+ * predictable branch instead of an opaque invocation. The engine must keep
+ * the field up to date with the bytecodes left to the running unit (e.g.,
+ * when switching units), and its slow path must charge the bytecodes spent
+ * and stop the unit or give it more budget.
+ * <p>
+ * The inline budget check branches, so it requires computing the frames.
+ */
+final class BytecodeCounter {
+    private final RuleSet rules;
+    private final boolean inlineBudget;
+
+    /**
+     * @throws IllegalArgumentException If checking the budget inline, but the
+     *                                  engine has no budget.
+     */
+    BytecodeCounter(RuleSet rules, boolean inlineBudget) {
+        if (inlineBudget && rules.budgetOwner == null) {
+            throw new IllegalArgumentException("The engine `" + rules.engine + "` has no budget to check inline");
+        }
+        this.rules = rules;
+        this.inlineBudget = inlineBudget;
+    }
+
+    /**
+     * Emits the increment of the bytecodes count by {@code bytecodes}.
+     */
+    void emit(MethodVisitor mv, int bytecodes) {
+        if (inlineBudget) {
+            mv.visitFieldInsn(Opcodes.GETSTATIC, rules.budgetOwner, rules.budgetField, "I");
+            MethodInstrumenter.emitInt(mv, bytecodes);
+            emitBudgetCheck(mv);
+            return;
+        }
+        MethodInstrumenter.emitInt(mv, bytecodes);
+        emit(mv);
+    }
+
+    /**
+     * Emits the increment of the bytecodes count by the {@code int} at the top
+     * of the stack.
+     */
+    void emit(MethodVisitor mv) {
+        if (inlineBudget) {
+            mv.visitFieldInsn(Opcodes.GETSTATIC, rules.budgetOwner, rules.budgetField, "I");
+            mv.visitInsn(Opcodes.SWAP);
+            emitBudgetCheck(mv);
+            return;
+        }
+        if (rules.counterDescriptor.equals("(J)V")) mv.visitInsn(Opcodes.I2L);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, rules.counterOwner, rules.counterName, rules.counterDescriptor,
+                false);
+    }
+
+    /**
+     * Emits the subtraction of the charge from the budget, both at the top of
+     * the stack, and the invocation of the slow path if it goes below 0.
+     */
+    private void emitBudgetCheck(MethodVisitor mv) {
+        Label end = new Label();
+        mv.visitInsn(Opcodes.ISUB);
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitFieldInsn(Opcodes.PUTSTATIC, rules.budgetOwner, rules.budgetField, "I");
+        mv.visitJumpInsn(Opcodes.IFGE, end);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, rules.budgetOwner, rules.budgetMethod, "()V", false);
+        mv.visitLabel(end);
+    }
+}
@@ -0,0 +1,79 @@
+package instrumenter;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.BitSet;
+
+/**
+ * Class to share the bytecodes counters of the methods of a class through
+ * static methods of the class, to keep the instrumented methods small.
+ * <p>
+ * A counter of a constant cost takes from 4 to 6 bytes of code (push the cost
+ * and invoke the count), while the invocation of a stub that does the same
+ * takes 3 bytes. Likewise, the flush of a local counter takes 7 bytes instead
+ * of 8. The JIT compiler inlines the stubs, which are tiny, so they only add
+ * overhead while the code is interpreted. The inline budget check (see
+ * {@link BytecodeCounter}) is much larger, so it is worth keeping in stubs.
+ * <p>
+ * The stubs of the costs used are added once the whole class has been
+ * visited. They are not used in interfaces, whose methods can't be invoked
+ * statically in older class files.
+ */
+final class ChargeStubs {
+    static final String CHARGE_METHOD = Instrumenter.RESERVED_PREFIX + "Charge",
+            FLUSH_METHOD = Instrumenter.RESERVED_PREFIX + "Flush";
+
+    private final String className;
+    private final BytecodeCounter counter;
+    private final BitSet costs = new BitSet();
+    private boolean flushed;
+
+    ChargeStubs(String className, BytecodeCounter counter) {
+        this.className = className;
+        this.counter = counter;
+    }
+
+    /**
+     * Emits the invocation of the stub that increments the bytecodes count by
+     * {@code bytecodes}.
+     */
+    void emitCharge(MethodVisitor mv, int bytecodes) {
+        costs.set(bytecodes);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, className, CHARGE_METHOD + bytecodes, "()V", false);
+    }
+
+    /**
+     * Emits the invocation of the stub that increments the bytecodes count by
+     * the local counter and resets it.
+     */
+    void emitFlush(MethodVisitor mv, int counter) {
+        flushed = true;
+        mv.visitVarInsn(Opcodes.ILOAD, counter);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, className, FLUSH_METHOD, "(I)I", false);
+        mv.visitVarInsn(Opcodes.ISTORE, counter);
+    }
+
+    void emitStubs(ClassVisitor cv) {
+        int access = Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC;
+        for (int cost = costs.nextSetBit(0); cost >= 0; cost = costs.nextSetBit(cost + 1)) {
+            MethodVisitor mv = cv.visitMethod(access, CHARGE_METHOD + cost, "()V", null, null);
+            mv.visitCode();
+            counter.emit(mv, cost);
+            mv.visitInsn(Opcodes.RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        if (flushed) {
+            MethodVisitor mv = cv.visitMethod(access, FLUSH_METHOD, "(I)I", null, null);
+            mv.visitCode();
+            mv.visitVarInsn(Opcodes.ILOAD, 0);
+            counter.emit(mv);
+            mv.visitInsn(Opcodes.ICONST_0);
+            mv.visitInsn(Opcodes.IRETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package instrumenter;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Class to index the class hierarchy seen by the instrumented package, to
+ * compute the stack map frames without loading any class.
+ * <p>
+ * The classes are looked up, in order, in a parent hierarchy (e.g., one of the
+ * JDK classes shared by several hierarchies), in the class path given (the
+ * package being instrumented and the engine API, as directories or jar files)
+ * and in the resources of a class loader (e.g., the JDK or the loader of the
+ * package). Only the header of each class (super class and interfaces) is
+ * read, the first time it is needed, and kept.
+ * <p>
+ * The index is safe to use concurrently.
+ */
+final class ClassHierarchy implements Closeable {
+    private static final String OBJECT = "java/lang/Object";
+    private static final ClassInfo MISSING = new ClassInfo(null, new String[0], false);
+
+    private final List<Path> dirs = new ArrayList<>();
+    private final List<ZipFile> jars = new ArrayList<>();
+    /**
+     * Referenced weakly, so that a hierarchy kept for a class loader (e.g., by
+     * the agent) doesn't keep the loader alive.
+     */
+    private final WeakReference<ClassLoader> loader;
+    private final ClassHierarchy parent;
+    private final Map<String, ClassInfo> classes = new ConcurrentHashMap<>();
+
+    ClassHierarchy(List<Path> classPath, ClassLoader loader, ClassHierarchy parent) throws IOException {
+        this.loader = loader != null ? new WeakReference<>(loader) : null;
+        this.parent = parent;
+        try {
+            for (Path path : classPath) {
+                if (Files.isDirectory(path)) {
+                    dirs.add(path);
+                } else {
+                    jars.add(new ZipFile(path.toFile()));
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Adds a class to the index (e.g., the class being instrumented, which may
+     * not be in the class path).
+     */
+    void add(ClassReader reader) {
+        classes.putIfAbsent(reader.getClassName(), new ClassInfo(reader));
+    }
+
+    /**
+     * Returns the common super class of two classes, in the same way as
+     * {@link org.objectweb.asm.ClassWriter#getCommonSuperClass}.
+     *
+     * @throws TypeNotPresentException If a class of the hierarchy is not found.
+     */
+    String getCommonSuperClass(String type1, String type2) {
+        if (isAssignableFrom(type1, type2)) return type1;
+        if (isAssignableFrom(type2, type1)) return type2;
+        if (get(type1).isInterface || get(type2).isInterface) return OBJECT;
+        String type = type1;
+        do {
+            type = get(type).superName;
+            if (type == null) return OBJECT;
+        } while (!isAssignableFrom(type, type2));
+        return type;
+    }
+
+    /**
+     * Whether a value of class {@code other} can be assigned to one of class
+     * {@code type}.
+     */
+    boolean isAssignableFrom(String type, String other) {
+        if (type.equals(other) || type.equals(OBJECT)) return true;
+        ClassInfo info = get(other);
+        if (info.superName != null && isAssignableFrom(type, info.superName)) return true;
+        for (String anInterface : info.interfaces) {
+            if (isAssignableFrom(type, anInterface)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Creates a hierarchy of the JDK classes only.
+     */
+    static ClassHierarchy ofPlatform() {
+        try {
+            return new ClassHierarchy(List.of(), ClassLoader.getPlatformClassLoader(), null);
+        } catch (IOException e) {
+            // There are no files to open
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private ClassInfo get(String name) {
+        ClassInfo info = find(name);
+        if (info == MISSING) throw new TypeNotPresentException(name.replace('/', '.'), null);
+        return info;
+    }
+
+    private ClassInfo find(String name) {
+        if (parent != null) {
+            ClassInfo info = parent.find(name);
+            if (info != MISSING) return info;
+        }
+        return classes.computeIfAbsent(name, this::read);
+    }
+
+    private ClassInfo read(String name) {
+        String fileName = name + ".class";
+        try {
+            for (Path dir : dirs) {
+                Path file = dir.resolve(fileName);
+                if (Files.isRegularFile(file)) return new ClassInfo(new ClassReader(Files.readAllBytes(file)));
+            }
+            for (ZipFile jar : jars) {
+                ZipEntry entry = jar.getEntry(fileName);
+                if (entry == null) continue;
+                try (InputStream in = jar.getInputStream(entry)) {
+                    return new ClassInfo(new ClassReader(in));
+                }
+            }
+            ClassLoader loader = this.loader != null ? this.loader.get() : null;
+            if (loader != null) {
+                try (InputStream in = loader.getResourceAsStream(fileName)) {
+                    if (in != null) return new ClassInfo(new ClassReader(in));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return MISSING;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException exception = null;
+        for (ZipFile jar : jars) {
+            try {
+                jar.close();
+            } catch (IOException e) {
+                exception = e;
+            }
+        }
+        if (exception != null) throw exception;
+    }
+
+    private static final class ClassInfo {
+        final String superName;
+        final String[] interfaces;
+        final boolean isInterface;
+
+        ClassInfo(String superName, String[] interfaces, boolean isInterface) {
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.isInterface = isInterface;
+        }
+
+        ClassInfo(ClassReader reader) {
+            this(reader.getSuperName(), reader.getInterfaces(),
+                    (reader.getAccess() & Opcodes.ACC_INTERFACE) != 0);
+        }
+    }
+}
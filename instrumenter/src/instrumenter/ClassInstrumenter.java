@@ -15,6 +15,11 @@ import org.objectweb.asm.*;
  * fields.
  * - {@code visitInnerClass}: Visits information about an inner class. Not sure what this is.
  * - {@code visitOuterClass}: Visits the enclosing class of the class. Not sure what this is.
+ * - {@code visitSource}: Visits the source file and its debug extension,
+ * dropped unless the debug attributes are kept (see {@link DebugMode}).
+ * - {@code visitEnd}: Visits the end of the class. Adds the histogram of the
+ * sites of the class, when profiling, the shared counters and the stubs of
+ * the dynamic costs, if any.
  * <p>
  * Common parameters:
  * - The access flags. E.g., public or static.
@@ -22,80 +27,245 @@ import org.objectweb.asm.*;
  * - The descriptor. For a method, this is basically this is the type of the
  * parameters and the return value.
  * - The signature. Basically to manage generic types, if used.
+ * <p>
+ * When validating, nothing is written, and every violation is added to a
+ * {@link ViolationReport} instead of stopping at the first one.
  */
 class ClassInstrumenter extends ClassVisitor {
     private static final Logger log = LogManager.getRootLogger();
 
-    private static String className = null;
+    final Instrumenter instrumenter;
+    /**
+     * Whether to trace the visits, checked once per class instead of once per
+     * visit, so that the trace costs nothing when disabled.
+     */
+    final boolean trace = log.isDebugEnabled();
+    /**
+     * Violations of the class, when collecting them instead of stopping at
+     * the first one.
+     */
+    private final ViolationReport report;
+    String className = null;
+    /**
+     * Name and descriptor of the method being visited, if any.
+     */
+    private String method = null;
+    /**
+     * Profiling sites of the class (only when profiling).
+     */
+    SiteTable sites = null;
+    private boolean hasInitializer = false;
+    /**
+     * Counters shared by the methods of the class (only when enabled).
+     */
+    ChargeStubs stubs = null;
+    /**
+     * Stubs of the sites with dynamic costs (only when the rules have any).
+     */
+    DynamicCostStubs costStubs = null;
+    /**
+     * Methods visited, and counters injected into them, for the statistics.
+     */
+    int methods = 0, counterSites = 0;
+    /**
+     * Report where the control flow graphs of the methods are added, when
+     * estimating their costs (see {@link CostReport}).
+     */
+    final CostReport costs;
+
+    ClassInstrumenter(Instrumenter instrumenter, ClassWriter classWriter) {
+        this(instrumenter, classWriter, null, null);
+    }
+
+    /**
+     * Creates an instrumenter that also adds the methods of the class to the
+     * cost report, which requires counting by blocks.
+     */
+    ClassInstrumenter(Instrumenter instrumenter, ClassWriter classWriter, CostReport costs) {
+        this(instrumenter, classWriter, null, costs);
+    }
+
+    /**
+     * Creates an instrumenter that only checks the class, without writing it,
+     * and adds all its violations to the report.
+     */
+    ClassInstrumenter(Instrumenter instrumenter, ViolationReport report) {
+        this(instrumenter, null, report, null);
+    }
 
-    ClassInstrumenter(ClassWriter classWriter) {
+    private ClassInstrumenter(Instrumenter instrumenter, ClassWriter classWriter, ViolationReport report,
+                              CostReport costs) {
         super(Opcodes.ASM9, classWriter);
+        this.instrumenter = instrumenter;
+        this.report = report;
+        this.costs = costs;
+    }
+
+    /**
+     * Whether the class is only checked, not written.
+     */
+    boolean isValidating() {
+        return report != null;
     }
 
     @Override
     public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
-        log.debug("ClassInstrumenter::visit " + name + " " + signature + " " + superName);
-        Instrumenter.checkValidClass(name);
-        Instrumenter.checkValidSignature(signature);
-        Instrumenter.checkValidClass(superName);
-        Instrumenter.checkValidClasses(interfaces);
+        if (trace) log.debug("ClassInstrumenter::visit " + name + " " + signature + " " + superName);
         className = name;
+        checkValidClass(name);
+        checkValidSignature(signature);
+        checkValidClass(superName);
+        checkValidClasses(interfaces);
+        // Nothing is added while only validating
+        if (isValidating()) return;
+        if (instrumenter.options.profile) sites = new SiteTable(name);
+        if (instrumenter.options.chargeStubs && (access & Opcodes.ACC_INTERFACE) == 0) {
+            stubs = new ChargeStubs(name, instrumenter.counter);
+        }
+        if (!instrumenter.rules.dynamicCosts.isEmpty() && DynamicCostStubs.isSupported(access, version)) {
+            costStubs = new DynamicCostStubs(name, (access & Opcodes.ACC_INTERFACE) != 0, version,
+                    instrumenter.counter);
+        }
         super.visit(version, access, name, signature, superName, interfaces);
     }
 
     @Override
     public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
                                      String[] exceptions) {
-        log.debug("ClassInstrumenter::visitMethod " + name + " " + descriptor + " " + signature);
+        if (trace) log.debug("ClassInstrumenter::visitMethod " + name + " " + descriptor + " " +
+                signature);
+        method = name + descriptor;
+        methods++;
         // Check UnitController constructor
-        if (className.equals(Instrumenter.packageName + "/UnitController") && name.equals("<init>")) {
+        if (className.equals(instrumenter.packageName + "/UnitController") && name.equals("<init>")) {
             if ((access & Opcodes.ACC_PUBLIC) == 0) {
-                log.error("It is prohibited to implement a non-public UnitController constructor. Instead of " +
-                        "implementing a constructor, it is recommended to use the method `public void init(Unit unit)" +
-                        "`");
-                System.exit(1);
+                report(new ViolationException("It is prohibited to implement a non-public UnitController " +
+                        "constructor. Instead of implementing a constructor, it is recommended to use the method " +
+                        "`public void init(Unit unit)`", className + ".<init>"));
             }
         }
         // Check other parameters
-        Instrumenter.checkValidDescriptor(descriptor);
-        Instrumenter.checkValidSignature(signature);
-        Instrumenter.checkValidClasses(exceptions);
+        checkNotReserved(name);
+        checkValidDescriptor(descriptor);
+        checkValidSignature(signature);
+        checkValidClasses(exceptions);
         MethodVisitor methodWriter = super.visitMethod(access, name, descriptor, signature, exceptions);
-        return new MethodInstrumenter(methodWriter);
+        if (sites != null && name.equals("<clinit>")) {
+            methodWriter = sites.initializing(methodWriter);
+            hasInitializer = true;
+        }
+        return new MethodInstrumenter(this, methodWriter, method);
     }
 
     @Override
     public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
-        log.debug("ClassInstrumenter::visitField " + name + " " + descriptor + " " + signature);
+        if (trace) log.debug("ClassInstrumenter::visitField " + name + " " + descriptor + " " +
+                signature);
+        checkNotReserved(name);
         // Check if the class attribute is static
         if ((access & Opcodes.ACC_STATIC) != 0) {
-            // Skip switches. They are identified as static fields, but they are not
-            if (!name.startsWith("$SwitchMap$")) {
-                log.error("Static attributes are prohibited (attribute `" + name + "` in class `" + className + "`)");
-                System.exit(1);
+            // Skip switches (they are identified as static fields, but they are not) and the exemptions of the engine
+            if (!instrumenter.rules.isStaticFieldExempt(name)) {
+                report(new ViolationException("Static attributes are prohibited (attribute `" + name +
+                        "` in class `" + className + "`)", name));
             }
         }
         // Check other parameters
-        Instrumenter.checkValidDescriptor(descriptor);
-        Instrumenter.checkValidSignature(signature);
+        checkValidDescriptor(descriptor);
+        checkValidSignature(signature);
         return super.visitField(access, name, descriptor, signature, value);
     }
 
+    @Override
+    public void visitSource(String source, String debug) {
+        // The source debug extension (e.g., SMAP) is only kept with the rest of the debug attributes
+        super.visitSource(source, instrumenter.options.debugMode == DebugMode.KEEP ? debug : null);
+    }
+
     @Override
     public void visitOuterClass(String owner, String name, String descriptor) {
-        log.debug("ClassInstrumenter::visitOuterClass " + owner + " " + name + " " + descriptor);
-        Instrumenter.checkValidClass(owner);
-        Instrumenter.checkValidClass(name);
-        Instrumenter.checkValidDescriptor(descriptor);
+        if (trace) log.debug("ClassInstrumenter::visitOuterClass " + owner + " " + name + " " +
+                descriptor);
+        checkValidClass(owner);
+        checkValidClass(name);
+        checkValidDescriptor(descriptor);
         super.visitOuterClass(owner, name, descriptor);
     }
 
     @Override
     public void visitInnerClass(String name, String outerName, String innerName, int access) {
-        log.debug("ClassInstrumenter::visitInnerClass " + name + " " + outerName + " " + innerName);
-        Instrumenter.checkValidClass(name);
-        Instrumenter.checkValidClass(outerName);
-        Instrumenter.checkValidClass(innerName);
+        if (trace) log.debug("ClassInstrumenter::visitInnerClass " + name + " " + outerName + " " +
+                innerName);
+        checkValidClass(name);
+        checkValidClass(outerName);
+        checkValidClass(innerName);
         super.visitInnerClass(name, outerName, innerName, access);
     }
+
+    @Override
+    public void visitEnd() {
+        if (trace) log.debug("ClassInstrumenter::visitEnd " + className);
+        // The histogram is only needed if there are sites, or the class initializer already allocates it
+        if (sites != null && (sites.size() > 0 || hasInitializer)) {
+            sites.emitFields(cv);
+            if (!hasInitializer) sites.emitInitializer(cv);
+            instrumenter.addSites(className, sites.getRows());
+        }
+        if (stubs != null) stubs.emitStubs(cv);
+        if (costStubs != null) costStubs.emitStubs(cv);
+        super.visitEnd();
+    }
+
+    /**
+     * Adds a violation to the report, or throws it if not collecting them.
+     */
+    void report(ViolationException e) {
+        if (report == null) throw e;
+        report.add(className, method, e);
+    }
+
+    void checkValidClass(String name) {
+        try {
+            instrumenter.checkValidClass(name);
+        } catch (ViolationException e) {
+            report(e);
+        }
+    }
+
+    void checkValidClasses(String[] names) {
+        if (names == null) return;
+        for (String name : names) checkValidClass(name);
+    }
+
+    void checkValidMethod(String owner, String name) {
+        try {
+            instrumenter.checkValidMethod(owner, name);
+        } catch (ViolationException e) {
+            report(e);
+        }
+    }
+
+    void checkValidDescriptor(String descriptor) {
+        try {
+            instrumenter.checkValidDescriptor(descriptor);
+        } catch (ViolationException e) {
+            report(e);
+        }
+    }
+
+    void checkValidSignature(String signature) {
+        try {
+            instrumenter.checkValidSignature(signature);
+        } catch (ViolationException e) {
+            report(e);
+        }
+    }
+
+    void checkNotReserved(String name) {
+        try {
+            instrumenter.checkNotReserved(name);
+        } catch (ViolationException e) {
+            report(e);
+        }
+    }
 }
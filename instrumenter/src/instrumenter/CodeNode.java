@@ -0,0 +1,152 @@
+package instrumenter;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.function.Consumer;
+
+/**
+ * Class to store a recorded instruction of a method.
+ * <p>
+ * Nodes are recorded by the {@link MethodBuffer} in the same order as they are
+ * visited, and are replayed later into the method writer. Apart from the
+ * instruction itself, each node stores the bytecodes charged right after it,
+ * following the cost model of the per-instruction instrumentation.
+ * <p>
+ * Labels, line numbers and frames are pseudo-instructions: they are not
+ * executed and do not take any space in the bytecode.
+ */
+final class CodeNode {
+    static final int INSN = 0;
+    static final int INT_INSN = 1;
+    static final int VAR_INSN = 2;
+    static final int TYPE_INSN = 3;
+    static final int FIELD_INSN = 4;
+    static final int METHOD_INSN = 5;
+    static final int INVOKE_DYNAMIC_INSN = 6;
+    static final int JUMP_INSN = 7;
+    static final int LABEL = 8;
+    static final int LDC_INSN = 9;
+    static final int IINC_INSN = 10;
+    static final int TABLESWITCH_INSN = 11;
+    static final int LOOKUPSWITCH_INSN = 12;
+    static final int MULTIANEWARRAY_INSN = 13;
+    static final int LINE = 14;
+    static final int FRAME = 15;
+    static final int OTHER = 16;
+
+    final int kind;
+    final int opcode;
+    int operand;
+    String owner, name, descriptor;
+    boolean isInterface;
+    Object value;
+    Object[] values, stack;
+    Label label;
+    Label[] labels;
+    int[] keys;
+    Consumer<MethodVisitor> action;
+
+    /**
+     * Bytecodes charged right after this node.
+     */
+    int charge;
+
+    CodeNode(int kind, int opcode) {
+        this.kind = kind;
+        this.opcode = opcode;
+    }
+
+    boolean isPseudo() {
+        return kind == LABEL || kind == LINE || kind == FRAME || kind == OTHER;
+    }
+
+    boolean isInvocation() {
+        return kind == METHOD_INSN || kind == INVOKE_DYNAMIC_INSN;
+    }
+
+    /**
+     * Whether this node ends a basic block, i.e., it may transfer the control
+     * anywhere else than the next node.
+     */
+    boolean isTerminator() {
+        switch (kind) {
+            case JUMP_INSN:
+            case TABLESWITCH_INSN:
+            case LOOKUPSWITCH_INSN:
+                return true;
+            case INSN:
+                return (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) || opcode == Opcodes.ATHROW;
+            case VAR_INSN:
+                return opcode == Opcodes.RET;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Whether the control may continue with the next node after executing this
+     * node.
+     */
+    boolean fallsThrough() {
+        if (!isTerminator()) return true;
+        return kind == JUMP_INSN && opcode != Opcodes.GOTO;
+    }
+
+    void accept(MethodVisitor mv) {
+        switch (kind) {
+            case INSN:
+                mv.visitInsn(opcode);
+                break;
+            case INT_INSN:
+                mv.visitIntInsn(opcode, operand);
+                break;
+            case VAR_INSN:
+                mv.visitVarInsn(opcode, operand);
+                break;
+            case TYPE_INSN:
+                mv.visitTypeInsn(opcode, descriptor);
+                break;
+            case FIELD_INSN:
+                mv.visitFieldInsn(opcode, owner, name, descriptor);
+                break;
+            case METHOD_INSN:
+                mv.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                break;
+            case INVOKE_DYNAMIC_INSN:
+                mv.visitInvokeDynamicInsn(name, descriptor, (Handle) value, values);
+                break;
+            case JUMP_INSN:
+                mv.visitJumpInsn(opcode, label);
+                break;
+            case LABEL:
+                mv.visitLabel(label);
+                break;
+            case LDC_INSN:
+                mv.visitLdcInsn(value);
+                break;
+            case IINC_INSN:
+                mv.visitIincInsn(operand, (Integer) value);
+                break;
+            case TABLESWITCH_INSN:
+                mv.visitTableSwitchInsn(keys[0], keys[1], label, labels);
+                break;
+            case LOOKUPSWITCH_INSN:
+                mv.visitLookupSwitchInsn(label, keys, labels);
+                break;
+            case MULTIANEWARRAY_INSN:
+                mv.visitMultiANewArrayInsn(descriptor, operand);
+                break;
+            case LINE:
+                mv.visitLineNumber(operand, label);
+                break;
+            case FRAME:
+                mv.visitFrame(opcode, operand, values, stack.length, stack);
+                break;
+            default:
+                action.accept(mv);
+        }
+    }
+}
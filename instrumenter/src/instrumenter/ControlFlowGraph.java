@@ -0,0 +1,153 @@
+package instrumenter;
+
+import org.objectweb.asm.Label;
+
+import java.util.*;
+
+/**
+ * Class to build the control flow graph of a recorded method.
+ * <p>
+ * A new basic block starts:
+ * - At the first node of the method.
+ * - After any node that may transfer the control somewhere else (jumps,
+ * switches, returns and throws).
+ * - At any label targeted by a jump, a switch or an exception handler.
+ * <p>
+ * The cost of each block is the sum of the bytecodes charged after its nodes,
+ * so the totals charged at every block boundary are the same as with the
+ * per-instruction instrumentation. The charge after the last node of a block
+ * only executes if the control falls through, so it is moved to the next block
+ * (e.g., conditional jumps), or dropped if it was unreachable (e.g., returns).
+ * If an exception is thrown in the middle of a block, the whole block has been
+ * charged already.
+ */
+final class ControlFlowGraph {
+    final List<CodeNode> nodes;
+    final List<BasicBlock> blocks = new ArrayList<>();
+    private final Map<Label, BasicBlock> blockOfLabel = new HashMap<>();
+
+    private ControlFlowGraph(List<CodeNode> nodes) {
+        this.nodes = nodes;
+    }
+
+    static ControlFlowGraph build(List<CodeNode> nodes, List<Label[]> tryCatchBlocks) {
+        ControlFlowGraph cfg = new ControlFlowGraph(nodes);
+        // Collect the labels where the control may jump to
+        Set<Label> targets = new HashSet<>();
+        Set<Label> handlers = new HashSet<>();
+        for (CodeNode node : nodes) {
+            if (node.kind == CodeNode.JUMP_INSN) targets.add(node.label);
+            if (node.kind == CodeNode.TABLESWITCH_INSN || node.kind == CodeNode.LOOKUPSWITCH_INSN) {
+                targets.add(node.label);
+                targets.addAll(Arrays.asList(node.labels));
+            }
+        }
+        for (Label[] tryCatchBlock : tryCatchBlocks) handlers.add(tryCatchBlock[2]);
+        targets.addAll(handlers);
+        // Split the nodes in blocks
+        Map<Label, BasicBlock> blockOfLabel = cfg.blockOfLabel;
+        Map<Label, Integer> indexOfLabel = new HashMap<>();
+        BasicBlock block = null;
+        boolean empty = true, split = true;
+        int carry = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            CodeNode node = nodes.get(i);
+            boolean target = node.kind == CodeNode.LABEL && targets.contains(node.label);
+            if (split || (target && !empty)) {
+                if (block != null) block.end = i;
+                if (carry != 0 && target) {
+                    // The charge after the previous node must not be executed when jumping to the label
+                    block = cfg.addBlock(i);
+                    block.cost = carry;
+                    block.end = i;
+                    carry = 0;
+                }
+                block = cfg.addBlock(i);
+                block.cost = carry;
+                empty = carry == 0;
+                split = false;
+                carry = 0;
+            }
+            if (node.kind == CodeNode.LABEL) {
+                blockOfLabel.put(node.label, block);
+                indexOfLabel.put(node.label, i);
+                if (handlers.contains(node.label)) block.handler = true;
+            }
+            if (!node.isPseudo() && block.entry == -1) block.entry = i;
+            if (node.isTerminator()) {
+                if (node.fallsThrough()) carry = node.charge;
+                split = true;
+            } else {
+                block.cost += node.charge;
+            }
+            if (!node.isPseudo() || node.charge != 0) empty = false;
+        }
+        if (block != null) block.end = nodes.size();
+        // Link the blocks
+        for (BasicBlock b : cfg.blocks) {
+            if (b.entry == -1) b.entry = b.end;
+            CodeNode last = b.end > b.start ? nodes.get(b.end - 1) : null;
+            if (last != null && last.isTerminator()) {
+                if (last.label != null) b.successors.add(blockOfLabel.get(last.label));
+                if (last.labels != null) {
+                    for (Label label : last.labels) {
+                        BasicBlock successor = blockOfLabel.get(label);
+                        if (!b.successors.contains(successor)) b.successors.add(successor);
+                    }
+                }
+                if (!last.fallsThrough()) continue;
+            }
+            if (b.index + 1 < cfg.blocks.size()) {
+                BasicBlock next = cfg.blocks.get(b.index + 1);
+                if (!b.successors.contains(next)) b.successors.add(next);
+            }
+        }
+        for (Label[] tryCatchBlock : tryCatchBlocks) {
+            int start = indexOfLabel.get(tryCatchBlock[0]), end = indexOfLabel.get(tryCatchBlock[1]);
+            BasicBlock handler = blockOfLabel.get(tryCatchBlock[2]);
+            for (BasicBlock b : cfg.blocks) {
+                if (b.start < end && b.end > start && !b.exceptionSuccessors.contains(handler)) {
+                    b.exceptionSuccessors.add(handler);
+                }
+            }
+        }
+        // Mark the reachable blocks
+        if (!cfg.blocks.isEmpty()) {
+            Deque<BasicBlock> pending = new ArrayDeque<>();
+            pending.push(cfg.blocks.get(0));
+            while (!pending.isEmpty()) {
+                BasicBlock b = pending.pop();
+                if (b.reachable) continue;
+                b.reachable = true;
+                for (BasicBlock successor : b.successors) pending.push(successor);
+                for (BasicBlock successor : b.exceptionSuccessors) pending.push(successor);
+            }
+        }
+        return cfg;
+    }
+
+    BasicBlock blockOf(Label label) {
+        return blockOfLabel.get(label);
+    }
+
+    /**
+     * Whether the jump or switch node, which is the last one of the block, may
+     * jump backward (i.e., to the same block or a previous one).
+     */
+    boolean jumpsBackward(BasicBlock block, CodeNode node) {
+        if (node.label != null && blockOf(node.label).index <= block.index) return true;
+        if (node.labels != null) {
+            for (Label label : node.labels) {
+                if (blockOf(label).index <= block.index) return true;
+            }
+        }
+        return false;
+    }
+
+    private BasicBlock addBlock(int start) {
+        BasicBlock block = new BasicBlock(blocks.size(), start);
+        block.entry = -1;
+        blocks.add(block);
+        return block;
+    }
+}
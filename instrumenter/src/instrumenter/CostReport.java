@@ -0,0 +1,322 @@
+package instrumenter;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Class to estimate the worst-case bytecodes cost of the methods of a package,
+ * statically, from their control flow graphs and the costs of the rules.
+ * <p>
+ * For each method:
+ * - The acyclic cost: the most expensive path from the entry to any exit, going
+ * through each loop once (i.e., without taking its back edges). For a method
+ * without loops, it is its worst-case cost.
+ * - The cost of an iteration of each loop: the most expensive path from its
+ * header back to it.
+ * <p>
+ * The invocations of methods of the package add the acyclic cost of the
+ * callee: the invoked method for static and special invocations, and the most
+ * expensive method of the package with the same name and descriptor for the
+ * virtual ones. A method is bounded if it has no loops, it isn't recursive,
+ * and the methods it invokes are bounded; its bound is then its acyclic cost.
+ * Invocations of lambdas (invokedynamic) are charged as a bytecode, and
+ * dynamic costs (see {@link DynamicCost}) only their base cost, so they may
+ * be underestimated.
+ * <p>
+ * Rows of the report, separated by tabs, sorted by class:
+ * - Class name.
+ * - Method name and descriptor.
+ * - Acyclic cost.
+ * - Bound, or {@code unbounded}.
+ * - Cost of an iteration of each loop, as {@code <line>:<cost>} (the line of
+ * its header, or {@code ?} if unknown), separated by commas.
+ * - {@code over} if the acyclic cost is over the cost budget.
+ * <p>
+ * The methods are added as they are recorded, concurrently, and the costs are
+ * computed once the whole package is known.
+ */
+final class CostReport {
+    static final String HEADER = "class\tmethod\tacyclic\tbound\tloops\tbudget\n";
+    private static final Logger log = LogManager.getRootLogger();
+
+    private final String packageName;
+    /**
+     * Acyclic cost over which a method is flagged (0 to disable it).
+     */
+    private final long budget;
+    private final Map<String, MethodGraph> methods = new TreeMap<>();
+
+    /**
+     * Graph of a method, without its back edges, and with the invocations of
+     * the methods of the package in each block.
+     */
+    private static final class MethodGraph {
+        final String className, method;
+        final int[] costs, lines;
+        /**
+         * Successors of each block in the graph without back edges, and the
+         * blocks in topological order (only the reachable ones).
+         */
+        final int[][] successors;
+        final int[] order;
+        /**
+         * Invocations of each block: {@code <owner>.<name><descriptor>}, or
+         * {@code *.<name><descriptor>} for the virtual ones.
+         */
+        final List<List<String>> calls;
+        /**
+         * Blocks of each loop, by header, and the blocks that jump back to it.
+         */
+        final Map<Integer, BitSet> loopBodies = new TreeMap<>();
+        final Map<Integer, BitSet> loopLatches = new TreeMap<>();
+
+        MethodGraph(String className, String method, int blocks) {
+            this.className = className;
+            this.method = method;
+            costs = new int[blocks];
+            lines = new int[blocks];
+            successors = new int[blocks][];
+            order = new int[blocks];
+            calls = new ArrayList<>();
+        }
+    }
+
+    CostReport(String packageName, long budget) {
+        this.packageName = packageName;
+        this.budget = budget;
+    }
+
+    /**
+     * Adds a method from its control flow graph, where the cost of each block
+     * is what it is charged.
+     */
+    void add(String className, String method, ControlFlowGraph cfg) {
+        List<BasicBlock> blocks = cfg.blocks;
+        MethodGraph graph = new MethodGraph(className, method, blocks.size());
+        int line = 0;
+        for (BasicBlock block : blocks) {
+            graph.costs[block.index] = block.reachable ? block.cost : 0;
+            List<String> calls = new ArrayList<>();
+            // The line of the block is its first one, or the last one before it
+            graph.lines[block.index] = line;
+            boolean lineFound = false;
+            for (int i = block.start; i < block.end; i++) {
+                CodeNode node = cfg.nodes.get(i);
+                if (node.kind == CodeNode.LINE) {
+                    line = node.operand;
+                    if (!lineFound) graph.lines[block.index] = line;
+                    lineFound = true;
+                }
+                if (node.kind == CodeNode.METHOD_INSN && isOwnPackage(node.owner) &&
+                        !node.name.startsWith(Instrumenter.RESERVED_PREFIX)) {
+                    boolean virtual = node.opcode == Opcodes.INVOKEVIRTUAL || node.opcode == Opcodes.INVOKEINTERFACE;
+                    calls.add((virtual ? "*" : node.owner) + "." + node.name + node.descriptor);
+                }
+            }
+            graph.calls.add(calls);
+        }
+        removeBackEdges(graph, blocks);
+        String key = className + "." + method;
+        synchronized (this) {
+            methods.put(key, graph);
+        }
+    }
+
+    private boolean isOwnPackage(String owner) {
+        return owner.startsWith(packageName) && owner.length() > packageName.length() &&
+                owner.charAt(packageName.length()) == '/';
+    }
+
+    /**
+     * Finds the back edges with a depth-first search from the entry, keeping
+     * the rest of the edges, the topological order of the blocks and the
+     * loops.
+     */
+    private static void removeBackEdges(MethodGraph graph, List<BasicBlock> blocks) {
+        int n = blocks.size();
+        // 0: not visited, 1: on the stack, 2: done
+        int[] state = new int[n];
+        List<List<Integer>> forward = new ArrayList<>();
+        for (int i = 0; i < n; i++) forward.add(new ArrayList<>());
+        int[] postOrder = new int[n];
+        int visited = 0;
+        if (n > 0) {
+            Deque<int[]> stack = new ArrayDeque<>();
+            stack.push(new int[]{0, 0});
+            state[0] = 1;
+            while (!stack.isEmpty()) {
+                int[] frame = stack.peek();
+                List<BasicBlock> successors = allSuccessors(blocks.get(frame[0]));
+                if (frame[1] == successors.size()) {
+                    stack.pop();
+                    state[frame[0]] = 2;
+                    postOrder[visited++] = frame[0];
+                    continue;
+                }
+                int successor = successors.get(frame[1]++).index;
+                if (state[successor] == 1) {
+                    graph.loopLatches.computeIfAbsent(successor, k -> new BitSet()).set(frame[0]);
+                    continue;
+                }
+                if (!forward.get(frame[0]).contains(successor)) forward.get(frame[0]).add(successor);
+                if (state[successor] == 0) {
+                    state[successor] = 1;
+                    stack.push(new int[]{successor, 0});
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) graph.successors[i] = forward.get(i).stream().mapToInt(Integer::intValue).toArray();
+        // Reverse post-order: every block before its successors
+        for (int i = 0; i < visited; i++) graph.order[i] = postOrder[visited - 1 - i];
+        for (int i = visited; i < n; i++) graph.order[i] = -1;
+        // Body of each loop: the blocks that reach a latch without going through the header
+        for (Map.Entry<Integer, BitSet> loop : graph.loopLatches.entrySet()) {
+            int header = loop.getKey();
+            BitSet body = new BitSet();
+            body.set(header);
+            Deque<Integer> pending = new ArrayDeque<>();
+            loop.getValue().stream().forEach(pending::push);
+            while (!pending.isEmpty()) {
+                int block = pending.pop();
+                if (body.get(block)) continue;
+                body.set(block);
+                for (BasicBlock predecessor : blocks) {
+                    if (predecessor.reachable && allSuccessors(predecessor).contains(blocks.get(block))) {
+                        pending.push(predecessor.index);
+                    }
+                }
+            }
+            graph.loopBodies.put(header, body);
+        }
+    }
+
+    private static List<BasicBlock> allSuccessors(BasicBlock block) {
+        if (block.exceptionSuccessors.isEmpty()) return block.successors;
+        List<BasicBlock> successors = new ArrayList<>(block.successors);
+        successors.addAll(block.exceptionSuccessors);
+        return successors;
+    }
+
+    /**
+     * Computes the costs of all the methods and writes the report, warning
+     * about the methods over the budget.
+     */
+    synchronized void write(Path file) throws IOException {
+        Map<String, long[]> costs = computeCosts();
+        try (Writer writer = Files.newBufferedWriter(file)) {
+            writer.write(HEADER);
+            for (Map.Entry<String, MethodGraph> entry : methods.entrySet()) {
+                MethodGraph graph = entry.getValue();
+                long[] cost = costs.get(entry.getKey());
+                StringBuilder loops = new StringBuilder();
+                for (int header : graph.loopBodies.keySet()) {
+                    if (loops.length() > 0) loops.append(',');
+                    int line = graph.lines[header];
+                    loops.append(line > 0 ? String.valueOf(line) : "?").append(':')
+                            .append(iterationCost(graph, header, costs));
+                }
+                boolean over = budget > 0 && cost[0] > budget;
+                writer.write(graph.className + "\t" + graph.method + "\t" + cost[0] + "\t" +
+                        (cost[1] != 0 ? String.valueOf(cost[0]) : "unbounded") + "\t" + loops + "\t" +
+                        (over ? "over" : "") + "\n");
+                if (over) {
+                    log.warn("Method `" + graph.method + "` of class `" + graph.className + "` may cost " + cost[0] +
+                            " bytecodes without repeating any loop, over the cost budget of " + budget);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the acyclic cost of every method, and whether it is bounded
+     * (1) or not (0), composing the costs of the methods it invokes.
+     */
+    private Map<String, long[]> computeCosts() {
+        Map<String, long[]> costs = new HashMap<>();
+        for (String method : methods.keySet()) computeCost(method, costs);
+        return costs;
+    }
+
+    private long[] computeCost(String method, Map<String, long[]> costs) {
+        long[] cost = costs.get(method);
+        if (cost != null) return cost;
+        // While being computed, a recursive invocation makes it unbounded, and adds nothing
+        costs.put(method, new long[]{0, 0});
+        MethodGraph graph = methods.get(method);
+        boolean bounded = graph.loopBodies.isEmpty();
+        long[] blockCosts = new long[graph.costs.length];
+        for (int block = 0; block < blockCosts.length; block++) {
+            blockCosts[block] = graph.costs[block];
+            for (String call : graph.calls.get(block)) {
+                long callee = 0;
+                for (String target : implementations(call)) {
+                    long[] targetCost = computeCost(target, costs);
+                    callee = Math.max(callee, targetCost[0]);
+                    if (targetCost[1] == 0) bounded = false;
+                }
+                blockCosts[block] += callee;
+            }
+        }
+        cost = new long[]{longestPath(graph, blockCosts, 0, -1), bounded ? 1 : 0};
+        costs.put(method, cost);
+        return cost;
+    }
+
+    /**
+     * Returns the cost of an iteration of a loop: the most expensive path from
+     * its header to any of its latches, inside the loop.
+     */
+    private long iterationCost(MethodGraph graph, int header, Map<String, long[]> costs) {
+        long[] blockCosts = new long[graph.costs.length];
+        for (int block = 0; block < blockCosts.length; block++) {
+            blockCosts[block] = graph.costs[block];
+            for (String call : graph.calls.get(block)) {
+                long callee = 0;
+                for (String target : implementations(call)) callee = Math.max(callee, costs.get(target)[0]);
+                blockCosts[block] += callee;
+            }
+        }
+        return longestPath(graph, blockCosts, header, header);
+    }
+
+    /**
+     * Returns the methods of the package that an invocation may execute.
+     */
+    private List<String> implementations(String call) {
+        if (!call.startsWith("*.")) return methods.containsKey(call) ? List.of(call) : List.of();
+        List<String> targets = new ArrayList<>();
+        for (MethodGraph graph : methods.values()) {
+            if (call.substring(2).equals(graph.method)) targets.add(graph.className + "." + graph.method);
+        }
+        return targets;
+    }
+
+    /**
+     * Returns the most expensive path from a block, in the graph without back
+     * edges: through any block to anywhere, if no loop is given, or through
+     * the body of the loop to any of its latches.
+     */
+    private static long longestPath(MethodGraph graph, long[] blockCosts, int from, int loop) {
+        BitSet within = loop < 0 ? null : graph.loopBodies.get(loop);
+        long[] best = new long[blockCosts.length];
+        Arrays.fill(best, -1);
+        best[from] = blockCosts[from];
+        long longest = 0;
+        for (int block : graph.order) {
+            if (block < 0 || best[block] < 0) continue;
+            if (loop < 0 || graph.loopLatches.get(loop).get(block)) longest = Math.max(longest, best[block]);
+            for (int successor : graph.successors[block]) {
+                if (within != null && !within.get(successor)) continue;
+                best[successor] = Math.max(best[successor], best[block] + blockCosts[successor]);
+            }
+        }
+        return longest;
+    }
+}
@@ -0,0 +1,391 @@
+package instrumenter;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.*;
+
+/**
+ * Class to store a counted loop of a method, whose bytecodes are charged once
+ * before entering it, instead of on every iteration.
+ * <p>
+ * A counted loop is compiled as javac does for
+ * {@code for (int i = ...; i < n; i++)}: a header block that compares an
+ * {@code int} induction variable with a bound and exits the loop, followed by
+ * the body, which ends with {@code IINC i 1} (or {@code -1}) and a jump back
+ * to the header. Also:
+ * - The comparison is {@code <}, {@code <=}, {@code >} or {@code >=},
+ * against a local variable, the length of an array in a local variable, or a
+ * constant. The bound can't change inside the loop, and the induction variable
+ * only changes by the last increment. The non-strict comparisons need a
+ * constant bound that can't overflow the induction variable (e.g.,
+ * {@code i >= 0}).
+ * - The body doesn't invoke any method, nor contains other loops: every
+ * iteration executes the same blocks (the path), from the header to the
+ * increment. Blocks in between may only leave the loop (e.g., {@code break}
+ * or {@code return}).
+ * - The control only enters the loop by falling through into the header, no
+ * exception handler is inside it, and no block of the loop is covered by an
+ * exception handler.
+ * <p>
+ * The trip count is computed at run time, when entering the loop, and the
+ * loop is charged {@code trips * path cost + header cost} (the last check),
+ * clamped to an {@code int}. The initial value of the induction variable is
+ * stored in a new local variable. When the loop is left early (from the path,
+ * not from the header), the bytecodes not executed are given back through a
+ * negative charge. When it is left by an exception thrown out of the method,
+ * they are given back by a handler that covers the loop and rethrows it, up
+ * to the end of the current iteration, since the block that threw is not
+ * known. Loops covered by a handler of the method are not counted loops, since
+ * their exceptions would not reach it.
+ */
+final class CountedLoop {
+    private static final int LOCAL = 0, ARRAY_LENGTH = 1, CONSTANT = 2;
+
+    final BasicBlock header, latch;
+    /**
+     * Blocks executed by every iteration, from the header to the latch.
+     */
+    final List<BasicBlock> path = new ArrayList<>();
+    /**
+     * Bytecodes charged by the blocks of the path before leaving the loop from
+     * each of them.
+     */
+    private final Map<BasicBlock, Integer> executed = new HashMap<>();
+    private int variable, boundKind, bound;
+    private boolean up, inclusive;
+    private int cost;
+
+    private CountedLoop(BasicBlock header, BasicBlock latch) {
+        this.header = header;
+        this.latch = latch;
+    }
+
+    /**
+     * Finds the counted loops of a method.
+     */
+    static List<CountedLoop> find(ControlFlowGraph cfg) {
+        List<CountedLoop> loops = new ArrayList<>();
+        Map<BasicBlock, List<BasicBlock>> predecessors = new HashMap<>();
+        for (BasicBlock block : cfg.blocks) {
+            for (BasicBlock successor : block.successors) {
+                predecessors.computeIfAbsent(successor, k -> new ArrayList<>()).add(block);
+            }
+            for (BasicBlock successor : block.exceptionSuccessors) {
+                predecessors.computeIfAbsent(successor, k -> new ArrayList<>()).add(block);
+            }
+        }
+        for (BasicBlock latch : cfg.blocks) {
+            if (!latch.reachable || latch.end == latch.start) continue;
+            CodeNode last = cfg.nodes.get(latch.end - 1);
+            if (last.kind != CodeNode.JUMP_INSN || last.opcode != Opcodes.GOTO) continue;
+            BasicBlock header = cfg.blockOf(last.label);
+            if (header.index == 0 || header.index >= latch.index) continue;
+            CountedLoop loop = new CountedLoop(header, latch);
+            if (loop.matches(cfg, predecessors)) loops.add(loop);
+        }
+        return loops;
+    }
+
+    private boolean matches(ControlFlowGraph cfg, Map<BasicBlock, List<BasicBlock>> predecessors) {
+        // Entered only from the previous block and the latch
+        BasicBlock preheader = cfg.blocks.get(header.index - 1);
+        List<BasicBlock> entries = predecessors.getOrDefault(header, List.of());
+        if (header.handler || entries.size() != 2 || !entries.contains(preheader) || !entries.contains(latch)) {
+            return false;
+        }
+        if (preheader.end > preheader.start && cfg.nodes.get(preheader.end - 1).isTerminator()) return false;
+        if (!matchesHeader(cfg) || !matchesLatch(cfg) || !matchesPath(cfg)) return false;
+        for (BasicBlock block : path) {
+            // Leaving through an exception would not give back the trips not executed
+            if (block.handler || !block.exceptionSuccessors.isEmpty()) return false;
+            for (BasicBlock predecessor : predecessors.getOrDefault(block, List.of())) {
+                if (block != header && !path.contains(predecessor)) return false;
+                if (predecessor.exceptionSuccessors.contains(block)) return false;
+            }
+            for (int i = block.start; i < block.end; i++) {
+                if (!matchesNode(cfg.nodes.get(i), block == latch && i == latch.end - 2)) return false;
+            }
+        }
+        int charged = 0;
+        for (BasicBlock block : path) {
+            charged += block.cost;
+            executed.put(block, charged);
+        }
+        cost = charged;
+        return true;
+    }
+
+    /**
+     * Matches {@code ILOAD i, <bound>, IF_ICMP<cond> exit}, or
+     * {@code ILOAD i, IF<cond> exit} for a bound of 0.
+     */
+    private boolean matchesHeader(ControlFlowGraph cfg) {
+        List<CodeNode> nodes = instructions(cfg, header);
+        if (nodes.size() < 2 || nodes.size() > 4) return false;
+        CodeNode load = nodes.get(0), jump = nodes.get(nodes.size() - 1);
+        if (load.kind != CodeNode.VAR_INSN || load.opcode != Opcodes.ILOAD) return false;
+        if (jump.kind != CodeNode.JUMP_INSN) return false;
+        variable = load.operand;
+        int condition;
+        if (nodes.size() == 2) {
+            if (jump.opcode < Opcodes.IFEQ || jump.opcode > Opcodes.IFLE) return false;
+            boundKind = CONSTANT;
+            bound = 0;
+            condition = jump.opcode - Opcodes.IFEQ + Opcodes.IF_ICMPEQ;
+        } else {
+            if (!matchesBound(nodes.subList(1, nodes.size() - 1))) return false;
+            condition = jump.opcode;
+        }
+        // The condition to leave the loop
+        switch (condition) {
+            case Opcodes.IF_ICMPGE:
+                up = true;
+                break;
+            case Opcodes.IF_ICMPGT:
+                up = inclusive = true;
+                break;
+            case Opcodes.IF_ICMPLE:
+                break;
+            case Opcodes.IF_ICMPLT:
+                inclusive = true;
+                break;
+            default:
+                return false;
+        }
+        // With <= and >=, the bound must not be the last value of the induction variable
+        if (inclusive && (boundKind != CONSTANT || bound == (up ? Integer.MAX_VALUE : Integer.MIN_VALUE))) {
+            return false;
+        }
+        // The loop is left when jumping, and continues when falling through
+        BasicBlock exit = cfg.blockOf(jump.label);
+        return exit.index < header.index || exit.index > latch.index;
+    }
+
+    private boolean matchesBound(List<CodeNode> nodes) {
+        CodeNode first = nodes.get(0);
+        if (nodes.size() == 2) {
+            if (first.kind != CodeNode.VAR_INSN || first.opcode != Opcodes.ALOAD) return false;
+            if (nodes.get(1).kind != CodeNode.INSN || nodes.get(1).opcode != Opcodes.ARRAYLENGTH) return false;
+            boundKind = ARRAY_LENGTH;
+            bound = first.operand;
+            return true;
+        }
+        if (first.kind == CodeNode.VAR_INSN && first.opcode == Opcodes.ILOAD && first.operand != variable) {
+            boundKind = LOCAL;
+            bound = first.operand;
+            return true;
+        }
+        boundKind = CONSTANT;
+        if (first.kind == CodeNode.INSN && first.opcode >= Opcodes.ICONST_M1 && first.opcode <= Opcodes.ICONST_5) {
+            bound = first.opcode - Opcodes.ICONST_0;
+            return true;
+        }
+        if (first.kind == CodeNode.INT_INSN && first.opcode != Opcodes.NEWARRAY) {
+            bound = first.operand;
+            return true;
+        }
+        if (first.kind == CodeNode.LDC_INSN && first.value instanceof Integer) {
+            bound = (Integer) first.value;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Matches {@code IINC i 1, GOTO header} (or {@code -1}, going down).
+     */
+    private boolean matchesLatch(ControlFlowGraph cfg) {
+        List<CodeNode> nodes = instructions(cfg, latch);
+        if (nodes.size() < 2) return false;
+        CodeNode increment = nodes.get(nodes.size() - 2);
+        return increment.kind == CodeNode.IINC_INSN && increment.operand == variable &&
+                (Integer) increment.value == (up ? 1 : -1) && cfg.nodes.get(latch.end - 2) == increment;
+    }
+
+    /**
+     * Finds the path from the header to the latch. Every other block of the
+     * loop must leave it.
+     */
+    private boolean matchesPath(ControlFlowGraph cfg) {
+        // Blocks of the loop that reach the latch, without going back
+        boolean[] reachesLatch = new boolean[latch.index - header.index + 1];
+        for (int index = latch.index; index >= header.index; index--) {
+            BasicBlock block = cfg.blocks.get(index);
+            if (block == latch) {
+                reachesLatch[index - header.index] = true;
+                continue;
+            }
+            for (BasicBlock successor : block.successors) {
+                if (successor.index < header.index || successor.index > latch.index) continue;
+                if (successor.index <= index) return false;
+                if (reachesLatch[successor.index - header.index]) reachesLatch[index - header.index] = true;
+            }
+        }
+        // A single path, without branches that join it again
+        for (BasicBlock block = header; ; ) {
+            path.add(block);
+            if (block == latch) break;
+            BasicBlock next = null;
+            for (BasicBlock successor : block.successors) {
+                if (successor.index < header.index || successor.index > latch.index) continue;
+                if (!reachesLatch[successor.index - header.index]) continue;
+                if (next != null) return false;
+                next = successor;
+            }
+            if (next == null) return false;
+            block = next;
+        }
+        int reaching = 0;
+        for (boolean reaches : reachesLatch) {
+            if (reaches) reaching++;
+        }
+        return reaching == path.size();
+    }
+
+    /**
+     * Whether a node of the path keeps the loop counted: no invocations, and
+     * no changes of the induction variable (but the increment) or the bound.
+     */
+    private boolean matchesNode(CodeNode node, boolean increment) {
+        if (node.isInvocation()) return false;
+        if (node.kind == CodeNode.IINC_INSN) {
+            return increment || (node.operand != variable && (boundKind != LOCAL || node.operand != bound));
+        }
+        if (node.kind == CodeNode.VAR_INSN && node.opcode >= Opcodes.ISTORE && node.opcode <= Opcodes.ASTORE) {
+            int size = node.opcode == Opcodes.LSTORE || node.opcode == Opcodes.DSTORE ? 2 : 1;
+            if (overlaps(node.operand, size, variable)) return false;
+            return boundKind == CONSTANT || !overlaps(node.operand, size, bound);
+        }
+        return node.kind != CodeNode.VAR_INSN || node.opcode != Opcodes.RET;
+    }
+
+    private static boolean overlaps(int slot, int size, int variable) {
+        return variable >= slot && variable < slot + size;
+    }
+
+    private static List<CodeNode> instructions(ControlFlowGraph cfg, BasicBlock block) {
+        List<CodeNode> nodes = new ArrayList<>();
+        for (int i = block.start; i < block.end; i++) {
+            CodeNode node = cfg.nodes.get(i);
+            if (!node.isPseudo()) nodes.add(node);
+        }
+        return nodes;
+    }
+
+    /**
+     * Whether leaving the loop from a block of its path gives back bytecodes.
+     * From the header, the loop has always been charged exactly.
+     */
+    boolean refundsExit(BasicBlock block) {
+        return block != header;
+    }
+
+    /**
+     * Emits the charge of the whole loop, storing the initial value of the
+     * induction variable in the local {@code start}.
+     */
+    void emitCharge(MethodVisitor mv, BytecodeCounter counter, int start) {
+        mv.visitVarInsn(Opcodes.ILOAD, variable);
+        mv.visitVarInsn(Opcodes.ISTORE, start);
+        emitLoopCost(mv, start);
+        mv.visitInsn(Opcodes.L2I);
+        counter.emit(mv);
+    }
+
+    /**
+     * Emits the negative charge of the bytecodes not executed when leaving
+     * the loop from a block of its path: the charge of the whole loop minus
+     * the bytecodes of the previous iterations and the blocks executed.
+     */
+    void emitRefund(MethodVisitor mv, BytecodeCounter counter, int start, BasicBlock block) {
+        emitLoopCost(mv, start);
+        // Iterations executed
+        mv.visitVarInsn(Opcodes.ILOAD, up ? variable : start);
+        mv.visitInsn(Opcodes.I2L);
+        mv.visitVarInsn(Opcodes.ILOAD, up ? start : variable);
+        mv.visitInsn(Opcodes.I2L);
+        mv.visitInsn(Opcodes.LSUB);
+        mv.visitLdcInsn((long) cost);
+        mv.visitInsn(Opcodes.LMUL);
+        mv.visitLdcInsn((long) executed.get(block));
+        mv.visitInsn(Opcodes.LADD);
+        mv.visitInsn(Opcodes.LSUB);
+        // Never more than charged
+        mv.visitInsn(Opcodes.LCONST_0);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Math", "max", "(JJ)J", false);
+        mv.visitInsn(Opcodes.L2I);
+        mv.visitInsn(Opcodes.INEG);
+        counter.emit(mv);
+    }
+
+    /**
+     * Emits the charge of the whole loop, as a {@code long}:
+     * {@code min(max(trips, 0) * path cost + header cost, Integer.MAX_VALUE)}.
+     */
+    private void emitLoopCost(MethodVisitor mv, int start) {
+        if (up) emitBound(mv);
+        mv.visitVarInsn(Opcodes.ILOAD, start);
+        mv.visitInsn(Opcodes.I2L);
+        if (!up) emitBound(mv);
+        mv.visitInsn(Opcodes.LSUB);
+        if (inclusive) {
+            mv.visitInsn(Opcodes.LCONST_1);
+            mv.visitInsn(Opcodes.LADD);
+        }
+        mv.visitInsn(Opcodes.LCONST_0);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Math", "max", "(JJ)J", false);
+        mv.visitLdcInsn((long) cost);
+        mv.visitInsn(Opcodes.LMUL);
+        mv.visitLdcInsn((long) header.cost);
+        mv.visitInsn(Opcodes.LADD);
+        mv.visitLdcInsn((long) Integer.MAX_VALUE);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Math", "min", "(JJ)J", false);
+    }
+
+    /**
+     * Emits the bound, as a {@code long}.
+     */
+    private void emitBound(MethodVisitor mv) {
+        switch (boundKind) {
+            case LOCAL:
+                mv.visitVarInsn(Opcodes.ILOAD, bound);
+                break;
+            case ARRAY_LENGTH:
+                mv.visitVarInsn(Opcodes.ALOAD, bound);
+                mv.visitInsn(Opcodes.ARRAYLENGTH);
+                break;
+            default:
+                MethodInstrumenter.emitInt(mv, bound);
+        }
+        mv.visitInsn(Opcodes.I2L);
+    }
+
+    /**
+     * Returns the exits of a block of the path: the labels it jumps to out of
+     * the path, and whether it falls through out of it.
+     */
+    List<Label> getJumpExits(ControlFlowGraph cfg, BasicBlock block) {
+        List<Label> exits = new ArrayList<>();
+        CodeNode last = block.end > block.start ? cfg.nodes.get(block.end - 1) : null;
+        if (last == null || !last.isTerminator()) return exits;
+        if (last.label != null && !path.contains(cfg.blockOf(last.label))) exits.add(last.label);
+        if (last.labels != null) {
+            for (Label label : last.labels) {
+                if (!path.contains(cfg.blockOf(label)) && !exits.contains(label)) exits.add(label);
+            }
+        }
+        return exits;
+    }
+
+    /**
+     * Whether a block of the path falls through into a block out of the path.
+     */
+    boolean fallsThroughExit(ControlFlowGraph cfg, BasicBlock block) {
+        if (block == latch) return false;
+        CodeNode last = block.end > block.start ? cfg.nodes.get(block.end - 1) : null;
+        if (last != null && !last.fallsThrough()) return false;
+        return !path.contains(cfg.blocks.get(block.index + 1));
+    }
+}
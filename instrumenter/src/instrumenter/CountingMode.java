@@ -0,0 +1,20 @@
+package instrumenter;
+
+/**
+ * Strategies to count the bytecodes executed by the instrumented code.
+ * <p>
+ * - {@code INSTRUCTION}: Increments the bytecodes count right after each
+ * instruction.
+ * - {@code BLOCK}: Builds the control flow graph of each method and increments
+ * the bytecodes count once at the beginning of each basic block, with the
+ * summed cost of the block.
+ * - {@code LOCAL}: Same as {@code BLOCK}, but the count is accumulated in a
+ * local variable of the method, and only added to the bytecodes count before
+ * backward jumps, method invocations, returns, throws and at the beginning of
+ * exception handlers.
+ */
+enum CountingMode {
+    INSTRUCTION,
+    BLOCK,
+    LOCAL
+}
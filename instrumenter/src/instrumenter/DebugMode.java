@@ -0,0 +1,25 @@
+package instrumenter;
+
+/**
+ * Which debug attributes of the classes are kept in the instrumented ones.
+ * <p>
+ * Unless they are kept, only the labels where the control may jump to (jumps,
+ * switches and exception handlers) are charged, instead of every label of the
+ * code (e.g., the ones of the line numbers or the ranges of the local
+ * variables), so the charges don't depend on how the package was compiled.
+ */
+enum DebugMode {
+    /**
+     * All kept, as compiled.
+     */
+    KEEP,
+    /**
+     * Only the line numbers and the source file kept, for the stack traces.
+     * The local variables and the source debug extension are dropped.
+     */
+    LINES,
+    /**
+     * All dropped. The sites of the profiles have no line.
+     */
+    STRIP
+}
@@ -0,0 +1,89 @@
+package instrumenter;
+
+/**
+ * Class to store a cost that depends on the operands of an instruction, for
+ * the sites whose work grows with their input, e.g., the allocation of an
+ * array or the sort of a list.
+ * <p>
+ * The cost is {@code base + product of the sizes of the operands / divisor},
+ * where the base is charged like any other cost, and the rest by a stub of the
+ * class (see {@link DynamicCostStubs}) when the site is executed.
+ * <p>
+ * In a cost table: {@code <owner>/<name>[<descriptor>] <base> <operands>
+ * [<divisor>]}, where the operands are joined by {@code *}:
+ * - {@code this}: The receiver of the method.
+ * - {@code arg<n>}: The argument {@code n} (from 0) of the method, or the
+ * dimension {@code n} of the array.
+ * - {@code args}: All the arguments, or dimensions.
+ * <p>
+ * The size of an operand is its value, for integers, its length, for arrays
+ * and char sequences, and its size, for collections and maps. Any other
+ * operand (including {@code null}) has size 0. The allocations of arrays are
+ * given by the pseudo-method {@code <array>/new}. Without descriptor, the
+ * cost applies to all the methods with the name.
+ */
+final class DynamicCost {
+    static final String ARRAY_OWNER = "<array>", ARRAY_NAME = "new";
+    static final int THIS = -1, ALL = -2;
+
+    /**
+     * Descriptor of the method, or {@code null} for any method with the name.
+     */
+    final String descriptor;
+    final int base;
+    final int[] operands;
+    final int divisor;
+
+    DynamicCost(String descriptor, int base, int[] operands, int divisor) {
+        this.descriptor = descriptor;
+        this.base = base;
+        this.operands = operands;
+        this.divisor = divisor;
+    }
+
+    /**
+     * Parses the operands and divisor of a cost table line.
+     *
+     * @throws IllegalArgumentException If they are not valid.
+     */
+    static DynamicCost parse(String descriptor, int base, String operands, String divisor) {
+        String[] names = operands.split("\\*");
+        int[] indexes = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+            if (name.equals("this")) {
+                indexes[i] = THIS;
+            } else if (name.equals("args")) {
+                indexes[i] = ALL;
+            } else if (name.matches("arg[0-9]{1,3}")) {
+                indexes[i] = Integer.parseInt(name.substring(3));
+            } else {
+                throw new IllegalArgumentException("invalid operand `" + name + "`");
+            }
+        }
+        int parsedDivisor = divisor == null ? 1 : Integer.parseInt(divisor);
+        if (parsedDivisor <= 0) throw new IllegalArgumentException("the divisor must be positive");
+        return new DynamicCost(descriptor, base, indexes, parsedDivisor);
+    }
+
+    /**
+     * Returns the operands, e.g., {@code this*arg0}.
+     */
+    String getOperands() {
+        StringBuilder sb = new StringBuilder();
+        for (int operand : operands) {
+            if (sb.length() > 0) sb.append('*');
+            sb.append(operand == THIS ? "this" : operand == ALL ? "args" : "arg" + operand);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the cost as in a cost table, without the method, e.g.,
+     * {@code 1 this*arg0 8}.
+     */
+    @Override
+    public String toString() {
+        return base + " " + getOperands() + " " + divisor;
+    }
+}
@@ -0,0 +1,332 @@
+package instrumenter;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class to charge the {@link DynamicCost}s of the sites of a class through
+ * static methods of the class.
+ * <p>
+ * A site with a dynamic cost (an invocation or an array allocation) is
+ * replaced by the invocation of a stub with the same operands and result, so
+ * the stack and the frames of the method don't change. The stub charges the
+ * sizes of the operands and then executes the original instruction. Sizing an
+ * operand needs branches (e.g., for {@code null}), which can't be added to the
+ * method when its original frames are kept, but can in the stub, whose frames
+ * are known. The JIT compiler inlines the stubs, like any small method.
+ * <p>
+ * Constructors and {@code super} invocations can't be moved to another
+ * method, so they are only charged the base cost. Likewise, the sites whose
+ * operands have no size (e.g., a {@code double} argument). The stubs are
+ * added once the whole class has been visited, and they need class files of
+ * Java 8 or later in interfaces.
+ */
+final class DynamicCostStubs {
+    static final String COST_METHOD = Instrumenter.RESERVED_PREFIX + "Cost";
+    private static final String PRIMITIVE_ARRAYS = "    ZCFDBSIJ";
+
+    private final String className;
+    private final boolean isInterface, frames;
+    private final BytecodeCounter counter;
+    /**
+     * Index of the stub of each site, by opcode, owner, name and descriptor.
+     */
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private final List<Stub> stubs = new ArrayList<>();
+
+    /**
+     * @param version Version of the class file. The stubs only have frames
+     *                from Java 6.
+     */
+    DynamicCostStubs(String className, boolean isInterface, int version, BytecodeCounter counter) {
+        this.className = className;
+        this.isInterface = isInterface;
+        this.frames = (version & 0xFFFF) >= Opcodes.V1_6;
+        this.counter = counter;
+    }
+
+    /**
+     * Whether the stubs can be added to a class.
+     */
+    static boolean isSupported(int access, int version) {
+        return (access & Opcodes.ACC_INTERFACE) == 0 || (version & 0xFFFF) >= Opcodes.V1_8;
+    }
+
+    /**
+     * Emits the invocation of the stub of a method, instead of invoking the
+     * method, if it can be charged by a stub.
+     *
+     * @return Whether it has been emitted.
+     */
+    boolean emitInvocation(MethodVisitor mv, DynamicCost cost, int opcode, String owner, String name,
+                           String descriptor, boolean isInterface) {
+        if (opcode == Opcodes.INVOKESPECIAL) return false;
+        String stubDescriptor = descriptor;
+        if (opcode != Opcodes.INVOKESTATIC) {
+            String ownerDescriptor = owner.charAt(0) == '[' ? owner : "L" + owner + ";";
+            stubDescriptor = "(" + ownerDescriptor + descriptor.substring(1);
+        }
+        return emitStub(mv, new Stub(cost, opcode, owner, name, descriptor, isInterface, 0, stubDescriptor,
+                opcode != Opcodes.INVOKESTATIC));
+    }
+
+    /**
+     * Emits the invocation of the stub of an array allocation, instead of
+     * allocating it, if it can be charged by a stub.
+     *
+     * @param type       For {@code ANEWARRAY}, type of the elements. For
+     *                   {@code MULTIANEWARRAY}, type of the array.
+     * @param operand    For {@code NEWARRAY}, type of the elements. For
+     *                   {@code MULTIANEWARRAY}, number of dimensions.
+     * @return Whether it has been emitted.
+     */
+    boolean emitNewArray(MethodVisitor mv, DynamicCost cost, int opcode, String type, int operand) {
+        String stubDescriptor;
+        if (opcode == Opcodes.NEWARRAY) {
+            stubDescriptor = "(I)[" + PRIMITIVE_ARRAYS.charAt(operand);
+        } else if (opcode == Opcodes.ANEWARRAY) {
+            stubDescriptor = "(I)[" + (type.charAt(0) == '[' ? type : "L" + type + ";");
+        } else {
+            stubDescriptor = "(" + "I".repeat(operand) + ")" + type;
+        }
+        return emitStub(mv, new Stub(cost, opcode, type, null, null, false, operand, stubDescriptor, false));
+    }
+
+    private boolean emitStub(MethodVisitor mv, Stub stub) {
+        if (stub.getSizedArguments() == null) return false;
+        String key = stub.opcode + " " + stub.owner + " " + stub.name + " " + stub.descriptor + " " + stub.operand;
+        Integer index = indexes.get(key);
+        if (index == null) {
+            index = stubs.size();
+            indexes.put(key, index);
+            stubs.add(stub);
+        }
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, className, COST_METHOD + index, stub.stubDescriptor, isInterface);
+        return true;
+    }
+
+    void emitStubs(ClassVisitor cv) {
+        int access = Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC;
+        for (int i = 0; i < stubs.size(); i++) {
+            Stub stub = stubs.get(i);
+            MethodVisitor mv = cv.visitMethod(access, COST_METHOD + i, stub.stubDescriptor, null, null);
+            mv.visitCode();
+            emitCharge(mv, stub);
+            // Original instruction
+            Type[] arguments = Type.getArgumentTypes(stub.stubDescriptor);
+            for (int argument = 0, slot = 0; argument < arguments.length; argument++) {
+                mv.visitVarInsn(arguments[argument].getOpcode(Opcodes.ILOAD), slot);
+                slot += arguments[argument].getSize();
+            }
+            switch (stub.opcode) {
+                case Opcodes.NEWARRAY:
+                    mv.visitIntInsn(Opcodes.NEWARRAY, stub.operand);
+                    break;
+                case Opcodes.ANEWARRAY:
+                    mv.visitTypeInsn(Opcodes.ANEWARRAY, stub.owner);
+                    break;
+                case Opcodes.MULTIANEWARRAY:
+                    mv.visitMultiANewArrayInsn(stub.owner, stub.operand);
+                    break;
+                default:
+                    mv.visitMethodInsn(stub.opcode, stub.owner, stub.name, stub.descriptor, stub.isInterface);
+            }
+            mv.visitInsn(Type.getReturnType(stub.stubDescriptor).getOpcode(Opcodes.IRETURN));
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+    }
+
+    /**
+     * Emits the charge of the sizes of the operands of a stub. The product is
+     * computed in {@code long} locals after the arguments, clamping every
+     * factor to an {@code int}, so that it can't overflow nor be negative.
+     */
+    private void emitCharge(MethodVisitor mv, Stub stub) {
+        Type[] arguments = Type.getArgumentTypes(stub.stubDescriptor);
+        int[] slots = new int[arguments.length];
+        Object[] locals = new Object[arguments.length + 2];
+        int slot = 0;
+        for (int i = 0; i < arguments.length; i++) {
+            slots[i] = slot;
+            slot += arguments[i].getSize();
+            locals[i] = getFrameType(arguments[i]);
+        }
+        int product = slot, size = slot + 2;
+        locals[arguments.length] = Opcodes.LONG;
+        locals[arguments.length + 1] = Opcodes.LONG;
+        mv.visitInsn(Opcodes.LCONST_1);
+        mv.visitVarInsn(Opcodes.LSTORE, product);
+        for (int argument : stub.getSizedArguments()) {
+            mv.visitInsn(Opcodes.LCONST_0);
+            mv.visitVarInsn(Opcodes.LSTORE, size);
+            Label end = new Label();
+            emitSize(mv, arguments[argument], slots[argument], size, end, locals);
+            mv.visitLabel(end);
+            emitFrame(mv, locals);
+            // product = min(product * min(max(size, 0), MAX), MAX)
+            mv.visitVarInsn(Opcodes.LLOAD, product);
+            mv.visitVarInsn(Opcodes.LLOAD, size);
+            mv.visitInsn(Opcodes.LCONST_0);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Math", "max", "(JJ)J", false);
+            emitClamp(mv);
+            mv.visitInsn(Opcodes.LMUL);
+            emitClamp(mv);
+            mv.visitVarInsn(Opcodes.LSTORE, product);
+        }
+        mv.visitVarInsn(Opcodes.LLOAD, product);
+        if (stub.cost.divisor > 1) {
+            mv.visitLdcInsn((long) stub.cost.divisor);
+            mv.visitInsn(Opcodes.LDIV);
+        }
+        mv.visitInsn(Opcodes.L2I);
+        counter.emit(mv);
+    }
+
+    private static void emitClamp(MethodVisitor mv) {
+        mv.visitLdcInsn((long) Integer.MAX_VALUE);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Math", "min", "(JJ)J", false);
+    }
+
+    /**
+     * Emits the frame of the stub once the product is computed: the
+     * arguments, the product and the size.
+     */
+    private void emitFrame(MethodVisitor mv, Object[] locals) {
+        if (frames) mv.visitFrame(Opcodes.F_NEW, locals.length, locals, 0, new Object[0]);
+    }
+
+    /**
+     * Emits the store of the size of an argument in the local {@code size},
+     * jumping to {@code end} when it has no size.
+     */
+    private void emitSize(MethodVisitor mv, Type type, int slot, int size, Label end, Object[] locals) {
+        switch (type.getSort()) {
+            case Type.LONG:
+                mv.visitVarInsn(Opcodes.LLOAD, slot);
+                mv.visitVarInsn(Opcodes.LSTORE, size);
+                return;
+            case Type.ARRAY:
+                mv.visitVarInsn(Opcodes.ALOAD, slot);
+                mv.visitJumpInsn(Opcodes.IFNULL, end);
+                mv.visitVarInsn(Opcodes.ALOAD, slot);
+                mv.visitInsn(Opcodes.ARRAYLENGTH);
+                mv.visitInsn(Opcodes.I2L);
+                mv.visitVarInsn(Opcodes.LSTORE, size);
+                return;
+            case Type.OBJECT:
+                Label map = new Label(), charSequence = new Label();
+                emitSize(mv, slot, size, "java/util/Collection", "size", map, end);
+                mv.visitLabel(map);
+                emitFrame(mv, locals);
+                emitSize(mv, slot, size, "java/util/Map", "size", charSequence, end);
+                mv.visitLabel(charSequence);
+                emitFrame(mv, locals);
+                emitSize(mv, slot, size, "java/lang/CharSequence", "length", end, end);
+                return;
+            default:
+                // Integers
+                mv.visitVarInsn(Opcodes.ILOAD, slot);
+                mv.visitInsn(Opcodes.I2L);
+                mv.visitVarInsn(Opcodes.LSTORE, size);
+        }
+    }
+
+    /**
+     * Emits the store of the size of an object of the interface
+     * {@code owner}, if it is one, or else jumps to {@code next}.
+     */
+    private static void emitSize(MethodVisitor mv, int slot, int size, String owner, String name, Label next,
+                                 Label end) {
+        mv.visitVarInsn(Opcodes.ALOAD, slot);
+        mv.visitTypeInsn(Opcodes.INSTANCEOF, owner);
+        mv.visitJumpInsn(Opcodes.IFEQ, next);
+        mv.visitVarInsn(Opcodes.ALOAD, slot);
+        mv.visitTypeInsn(Opcodes.CHECKCAST, owner);
+        mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, owner, name, "()I", true);
+        mv.visitInsn(Opcodes.I2L);
+        mv.visitVarInsn(Opcodes.LSTORE, size);
+        if (next != end) mv.visitJumpInsn(Opcodes.GOTO, end);
+    }
+
+    private static Object getFrameType(Type type) {
+        switch (type.getSort()) {
+            case Type.LONG:
+                return Opcodes.LONG;
+            case Type.FLOAT:
+                return Opcodes.FLOAT;
+            case Type.DOUBLE:
+                return Opcodes.DOUBLE;
+            case Type.ARRAY:
+                return type.getDescriptor();
+            case Type.OBJECT:
+                return type.getInternalName();
+            default:
+                return Opcodes.INTEGER;
+        }
+    }
+
+    /**
+     * Site charged by a stub.
+     */
+    private static final class Stub {
+        final DynamicCost cost;
+        final int opcode;
+        final String owner, name, descriptor;
+        final boolean isInterface;
+        final int operand;
+        final String stubDescriptor;
+        /**
+         * Whether the first argument of the stub is the receiver.
+         */
+        final boolean hasReceiver;
+
+        Stub(DynamicCost cost, int opcode, String owner, String name, String descriptor, boolean isInterface,
+             int operand, String stubDescriptor, boolean hasReceiver) {
+            this.cost = cost;
+            this.opcode = opcode;
+            this.owner = owner;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.isInterface = isInterface;
+            this.operand = operand;
+            this.stubDescriptor = stubDescriptor;
+            this.hasReceiver = hasReceiver;
+        }
+
+        /**
+         * Returns the indexes of the arguments of the stub sized by the cost,
+         * or {@code null} if any operand has no size, so that it is always 0.
+         */
+        int[] getSizedArguments() {
+            Type[] arguments = Type.getArgumentTypes(stubDescriptor);
+            int first = hasReceiver ? 1 : 0;
+            List<Integer> sized = new ArrayList<>();
+            for (int operand : cost.operands) {
+                if (operand == DynamicCost.ALL) {
+                    if (arguments.length == first) return null;
+                    for (int i = first; i < arguments.length; i++) sized.add(i);
+                } else if (operand == DynamicCost.THIS) {
+                    if (!hasReceiver) return null;
+                    sized.add(0);
+                } else {
+                    if (first + operand >= arguments.length) return null;
+                    sized.add(first + operand);
+                }
+            }
+            for (int argument : sized) {
+                int sort = arguments[argument].getSort();
+                if (sort == Type.BOOLEAN || sort == Type.FLOAT || sort == Type.DOUBLE) return null;
+            }
+            return sized.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+}
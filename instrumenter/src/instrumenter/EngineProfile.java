@@ -0,0 +1,404 @@
+package instrumenter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Class to store the profile of an engine: everything the instrumenter needs
+ * to know about it, which is compiled into a {@link RuleSet}.
+ * <p>
+ * Given with {@code engine}, a profile is either:
+ * - The name of an engine, for the default profile: the tables in the
+ * resources of the instrumenter, the engine API ({@code <engine>/api/}) and
+ * the counter of the Pirates engine.
+ * - A profile file, as text or compiled (see {@link #write}).
+ * <p>
+ * Lines of a text profile (the rest of a line after {@code #} is ignored):
+ * - {@code engine <name>}: Name of the engine.
+ * - {@code counter <owner> <name> <descriptor>}: Static method to increment
+ * the bytecodes count, by an {@code int} ({@code (I)V}) or a {@code long}
+ * ({@code (J)V}).
+ * - {@code budget <owner> <field> <method>}: Budget of the running unit, to
+ * check it inline instead of invoking the counter (see
+ * {@link BytecodeCounter}): a {@code public static int} field with the
+ * bytecodes left, and a {@code public static void} method without arguments,
+ * invoked when the field goes below 0.
+ * - {@code defaults}: Adds the tables of the JDK in the resources of the
+ * instrumenter (allowed libraries, disallowed classes and methods, and dynamic
+ * costs).
+ * - {@code allow-library <library>}: Allowed library (package).
+ * - {@code disallow-class <class>}: Disallowed class.
+ * - {@code disallow-method <owner> <name>}: Disallowed method.
+ * - {@code cost <owner>/<name> <cost>}: Bytecodes cost of a method.
+ * - {@code cost <owner>/<name>[<descriptor>] <base> <operands> [<divisor>]}:
+ * Bytecodes cost of a method, or of the allocation of arrays, that depends on
+ * the size of its operands (see {@link DynamicCost}).
+ * - {@code cost-table <file>}: Adds the costs of a file with a cost per line
+ * (as in {@code cost}), relative to the profile.
+ * - {@code static-field <prefix>}: Static fields allowed, by prefix of their
+ * name (e.g., {@code $SwitchMap$}, which is always allowed).
+ */
+final class EngineProfile {
+    /**
+     * Header of compiled profiles ({@code AICE}).
+     */
+    private static final int MAGIC = 0x41494345, VERSION = 3;
+    private static final String DEFAULT_COUNTER_OWNER = "pirates/threading/ThreadManager",
+            DEFAULT_COUNTER_NAME = "addBytecodes", DEFAULT_COUNTER_DESCRIPTOR = "(I)V";
+
+    String engine;
+    String counterOwner = DEFAULT_COUNTER_OWNER, counterName = DEFAULT_COUNTER_NAME,
+            counterDescriptor = DEFAULT_COUNTER_DESCRIPTOR;
+    /**
+     * Budget field and its slow path, if the engine has them.
+     */
+    String budgetOwner, budgetField, budgetMethod;
+    final Map<String, Integer> methodBytecodeCosts = new HashMap<>();
+    /**
+     * Dynamic costs, by {@code <owner>/<name>}.
+     */
+    final Map<String, List<DynamicCost>> dynamicCosts = new HashMap<>();
+    final Set<String> allowedLibraries = new HashSet<>(), disallowedClasses = new HashSet<>();
+    final Map<String, List<String>> disallowedMethods = new HashMap<>();
+    final List<String> staticFieldPrefixes = new ArrayList<>(List.of("$SwitchMap$"));
+
+    /**
+     * Loads the profile given with {@code engine}: a profile file, if it
+     * exists, or the default profile of the engine otherwise.
+     */
+    static EngineProfile load(String engine) throws IOException {
+        Path file = Paths.get(engine);
+        if (Files.isRegularFile(file)) return read(file);
+        EngineProfile profile = new EngineProfile();
+        profile.engine = engine;
+        profile.addDefaults();
+        profile.allowedLibraries.add(engine + "/api/");
+        try (BufferedReader reader = getResourceReader("resources/MethodBytecodeCosts.txt")) {
+            profile.readCosts(reader, "resources/MethodBytecodeCosts.txt");
+        }
+        return profile;
+    }
+
+    /**
+     * Reads a profile file, either as text or compiled.
+     */
+    static EngineProfile read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            in.mark(4);
+            if (in.available() >= 4 && in.readInt() == MAGIC) return readCompiled(in, file);
+            in.reset();
+            EngineProfile profile = new EngineProfile();
+            profile.parse(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), file);
+            if (profile.engine == null) {
+                throw new IllegalArgumentException("Missing `engine` in engine profile `" + file + "`");
+            }
+            return profile;
+        }
+    }
+
+    private void parse(BufferedReader reader, Path file) throws IOException {
+        String line;
+        for (int lineNumber = 1; (line = reader.readLine()) != null; lineNumber++) {
+            List<String> tokens = tokenize(line);
+            if (tokens.isEmpty()) continue;
+            String directive = tokens.get(0);
+            int arguments;
+            switch (directive) {
+                case "engine":
+                case "allow-library":
+                case "disallow-class":
+                case "cost-table":
+                case "static-field":
+                    arguments = 1;
+                    break;
+                case "disallow-method":
+                    arguments = 2;
+                    break;
+                case "cost":
+                    // Static or dynamic
+                    arguments = Math.min(Math.max(tokens.size() - 1, 2), 4);
+                    break;
+                case "counter":
+                case "budget":
+                    arguments = 3;
+                    break;
+                case "defaults":
+                    arguments = 0;
+                    break;
+                default:
+                    throw invalidLine(file, lineNumber, "unknown `" + directive + "`");
+            }
+            if (tokens.size() != arguments + 1) {
+                throw invalidLine(file, lineNumber, "`" + directive + "` takes " +
+                        (directive.equals("cost") ? "2 to 4" : arguments) + " arguments");
+            }
+            switch (directive) {
+                case "engine":
+                    engine = tokens.get(1);
+                    break;
+                case "counter":
+                    counterOwner = tokens.get(1);
+                    counterName = tokens.get(2);
+                    counterDescriptor = tokens.get(3);
+                    if (!counterDescriptor.equals("(I)V") && !counterDescriptor.equals("(J)V")) {
+                        throw invalidLine(file, lineNumber, "the counter must take an int or a long");
+                    }
+                    break;
+                case "budget":
+                    budgetOwner = tokens.get(1);
+                    budgetField = tokens.get(2);
+                    budgetMethod = tokens.get(3);
+                    break;
+                case "defaults":
+                    addDefaults();
+                    break;
+                case "allow-library":
+                    allowedLibraries.add(toLibrary(tokens.get(1)));
+                    break;
+                case "disallow-class":
+                    disallowedClasses.add(tokens.get(1));
+                    break;
+                case "disallow-method":
+                    addDisallowedMethod(tokens.get(1), tokens.get(2));
+                    break;
+                case "cost":
+                    addCost(tokens.subList(1, tokens.size()), file, lineNumber);
+                    break;
+                case "cost-table":
+                    Path table = file.toAbsolutePath().resolveSibling(tokens.get(1));
+                    try (BufferedReader tableReader = Files.newBufferedReader(table)) {
+                        readCosts(tableReader, table);
+                    }
+                    break;
+                default:
+                    staticFieldPrefixes.add(tokens.get(1));
+            }
+        }
+    }
+
+    /**
+     * Adds the tables of the JDK in the resources of the instrumenter.
+     */
+    private void addDefaults() throws IOException {
+        try (BufferedReader reader = getResourceReader("resources/AllowedLibraries.txt")) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) allowedLibraries.add(toLibrary(line.trim()));
+            }
+        }
+        try (BufferedReader reader = getResourceReader("resources/DisallowedClasses.txt")) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) disallowedClasses.add(line.trim());
+            }
+        }
+        try (BufferedReader reader = getResourceReader("resources/DisallowedMethods.txt")) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                List<String> tokens = tokenize(line);
+                if (tokens.size() == 2) addDisallowedMethod(tokens.get(0), tokens.get(1));
+            }
+        }
+        try (BufferedReader reader = getResourceReader("resources/DynamicBytecodeCosts.txt")) {
+            readCosts(reader, "resources/DynamicBytecodeCosts.txt");
+        }
+    }
+
+    /**
+     * Reads a table of costs, with a cost per line (as in {@code cost}).
+     */
+    private void readCosts(BufferedReader reader, Object source) throws IOException {
+        String line;
+        for (int lineNumber = 1; (line = reader.readLine()) != null; lineNumber++) {
+            List<String> tokens = tokenize(line);
+            if (tokens.isEmpty()) continue;
+            if (tokens.size() < 2 || tokens.size() > 4) {
+                throw invalidLine(source, lineNumber, "`<owner>/<name> <cost>` expected");
+            }
+            addCost(tokens, source, lineNumber);
+        }
+    }
+
+    /**
+     * Adds a static cost ({@code <owner>/<name> <cost>}) or a dynamic one
+     * ({@code <owner>/<name>[<descriptor>] <base> <operands> [<divisor>]}).
+     */
+    private void addCost(List<String> tokens, Object file, int lineNumber) {
+        String method = tokens.get(0), descriptor = null;
+        int indexOfDescriptor = method.indexOf('(');
+        if (indexOfDescriptor != -1) {
+            if (tokens.size() == 2) throw invalidLine(file, lineNumber, "only dynamic costs can have a descriptor");
+            descriptor = method.substring(indexOfDescriptor);
+            method = method.substring(0, indexOfDescriptor);
+        }
+        if (method.lastIndexOf('/') <= 0) throw invalidLine(file, lineNumber, "the method must be `<owner>/<name>`");
+        int cost;
+        try {
+            cost = Integer.parseInt(tokens.get(1));
+        } catch (NumberFormatException e) {
+            throw invalidLine(file, lineNumber, "invalid cost `" + tokens.get(1) + "`");
+        }
+        if (tokens.size() == 2) {
+            methodBytecodeCosts.put(method, cost);
+            return;
+        }
+        try {
+            DynamicCost dynamicCost = DynamicCost.parse(descriptor, cost, tokens.get(2),
+                    tokens.size() == 4 ? tokens.get(3) : null);
+            addDynamicCost(method, dynamicCost);
+        } catch (IllegalArgumentException e) {
+            throw invalidLine(file, lineNumber, e.getMessage());
+        }
+    }
+
+    /**
+     * Adds a dynamic cost, replacing the one of the same method and
+     * descriptor, if any.
+     */
+    private void addDynamicCost(String method, DynamicCost cost) {
+        List<DynamicCost> costs = dynamicCosts.computeIfAbsent(method, k -> new ArrayList<>());
+        costs.removeIf(c -> Objects.equals(c.descriptor, cost.descriptor));
+        costs.add(cost);
+    }
+
+    private void addDisallowedMethod(String owner, String name) {
+        disallowedMethods.computeIfAbsent(owner, k -> new ArrayList<>()).add(name);
+    }
+
+    private static String toLibrary(String library) {
+        return library.endsWith("/") ? library : library + "/";
+    }
+
+    /**
+     * Splits a line by whitespace, dropping the comment, if any.
+     */
+    private static List<String> tokenize(String line) {
+        List<String> tokens = new ArrayList<>(4);
+        int end = line.indexOf('#');
+        if (end == -1) end = line.length();
+        int start = -1;
+        for (int i = 0; i <= end; i++) {
+            boolean whitespace = i == end || Character.isWhitespace(line.charAt(i));
+            if (whitespace && start != -1) {
+                tokens.add(line.substring(start, i));
+                start = -1;
+            } else if (!whitespace && start == -1) {
+                start = i;
+            }
+        }
+        return tokens;
+    }
+
+    private static IllegalArgumentException invalidLine(Object file, int lineNumber, String reason) {
+        return new IllegalArgumentException("Invalid line " + lineNumber + " of `" + file + "`: " + reason);
+    }
+
+    private static BufferedReader getResourceReader(String filePath) throws FileNotFoundException {
+        InputStream in = EngineProfile.class.getClassLoader().getResourceAsStream(filePath);
+        if (in == null) throw new FileNotFoundException("Unable to find file `" + filePath + "`");
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes the profile compiled: a binary form that is loaded without
+     * parsing any text nor reading the resources, with the tables sorted.
+     */
+    void write(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(engine);
+            out.writeUTF(counterOwner);
+            out.writeUTF(counterName);
+            out.writeUTF(counterDescriptor);
+            writeStrings(out, allowedLibraries);
+            writeStrings(out, disallowedClasses);
+            Map<String, List<String>> methods = new TreeMap<>(disallowedMethods);
+            out.writeInt(methods.size());
+            for (Map.Entry<String, List<String>> entry : methods.entrySet()) {
+                out.writeUTF(entry.getKey());
+                writeStrings(out, entry.getValue());
+            }
+            Map<String, Integer> costs = new TreeMap<>(methodBytecodeCosts);
+            out.writeInt(costs.size());
+            for (Map.Entry<String, Integer> entry : costs.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+            writeStrings(out, staticFieldPrefixes);
+            Map<String, List<DynamicCost>> dynamic = new TreeMap<>(dynamicCosts);
+            out.writeInt(dynamic.size());
+            for (Map.Entry<String, List<DynamicCost>> entry : dynamic.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (DynamicCost cost : entry.getValue()) {
+                    out.writeUTF(cost.descriptor != null ? cost.descriptor : "");
+                    out.writeInt(cost.base);
+                    out.writeInt(cost.operands.length);
+                    for (int operand : cost.operands) out.writeInt(operand);
+                    out.writeInt(cost.divisor);
+                }
+            }
+            out.writeBoolean(budgetOwner != null);
+            if (budgetOwner != null) {
+                out.writeUTF(budgetOwner);
+                out.writeUTF(budgetField);
+                out.writeUTF(budgetMethod);
+            }
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, Collection<String> strings) throws IOException {
+        // Sorted and without duplicates (e.g., a static field prefix given twice), counted as written
+        Set<String> sorted = new TreeSet<>(strings);
+        out.writeInt(sorted.size());
+        for (String string : sorted) out.writeUTF(string);
+    }
+
+    private static EngineProfile readCompiled(DataInputStream in, Path file) throws IOException {
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Engine profile `" + file + "` compiled with version " + version +
+                    ", expected " + VERSION);
+        }
+        EngineProfile profile = new EngineProfile();
+        profile.engine = in.readUTF();
+        profile.counterOwner = in.readUTF();
+        profile.counterName = in.readUTF();
+        profile.counterDescriptor = in.readUTF();
+        readStrings(in, profile.allowedLibraries);
+        readStrings(in, profile.disallowedClasses);
+        for (int i = in.readInt(); i > 0; i--) {
+            String owner = in.readUTF();
+            readStrings(in, profile.disallowedMethods.computeIfAbsent(owner, k -> new ArrayList<>()));
+        }
+        for (int i = in.readInt(); i > 0; i--) profile.methodBytecodeCosts.put(in.readUTF(), in.readInt());
+        profile.staticFieldPrefixes.clear();
+        readStrings(in, profile.staticFieldPrefixes);
+        for (int i = in.readInt(); i > 0; i--) {
+            String method = in.readUTF();
+            List<DynamicCost> costs = profile.dynamicCosts.computeIfAbsent(method, k -> new ArrayList<>());
+            for (int j = in.readInt(); j > 0; j--) {
+                String descriptor = in.readUTF();
+                int base = in.readInt();
+                int[] operands = new int[in.readInt()];
+                for (int k = 0; k < operands.length; k++) operands[k] = in.readInt();
+                costs.add(new DynamicCost(descriptor.isEmpty() ? null : descriptor, base, operands, in.readInt()));
+            }
+        }
+        if (in.readBoolean()) {
+            profile.budgetOwner = in.readUTF();
+            profile.budgetField = in.readUTF();
+            profile.budgetMethod = in.readUTF();
+        }
+        return profile;
+    }
+
+    private static void readStrings(DataInputStream in, Collection<String> strings) throws IOException {
+        for (int i = in.readInt(); i > 0; i--) strings.add(in.readUTF());
+    }
+}
@@ -0,0 +1,24 @@
+package instrumenter;
+
+/**
+ * How the stack map frames of the instrumented methods are obtained.
+ */
+enum FrameMode {
+    /**
+     * Computed from scratch by ASM, loading the classes with reflection to
+     * find their common super classes. The classes of the package and the
+     * engine must be in the class path of the instrumenter.
+     */
+    COMPUTE,
+    /**
+     * Computed from scratch by ASM, finding the common super classes in a
+     * {@link ClassHierarchy} of the package, the engine API and the JDK.
+     */
+    HIERARCHY,
+    /**
+     * Kept from the original class. The injected counters don't change the
+     * stack, so they are placed after the frames and never after an
+     * unconditional jump, and a local counter is added to the frames.
+     */
+    KEEP
+}
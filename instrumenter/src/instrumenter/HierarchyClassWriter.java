@@ -0,0 +1,22 @@
+package instrumenter;
+
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * Class writer that resolves the common super classes, needed to compute the
+ * stack map frames, with a {@link ClassHierarchy} instead of loading the
+ * classes with reflection.
+ */
+final class HierarchyClassWriter extends ClassWriter {
+    private final ClassHierarchy hierarchy;
+
+    HierarchyClassWriter(int flags, ClassHierarchy hierarchy) {
+        super(flags);
+        this.hierarchy = hierarchy;
+    }
+
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+        return hierarchy.getCommonSuperClass(type1, type2);
+    }
+}
@@ -0,0 +1,153 @@
+package instrumenter;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Class to instrument many packages in a single process (e.g., all the bots of
+ * a tournament), so that the JVM startup, the loading of the rules and the
+ * class hierarchy of the JDK and the engine API are paid once, not once per
+ * package.
+ * <p>
+ * The packages are given by a manifest, with a package per line (the rest of
+ * a line after {@code #} is ignored):
+ * {@code <engine> <build path or jar> <package> [<output>]}, where a jar is
+ * any path ending with {@code .jar}. The output is the default one of the
+ * job if not given (see {@link InstrumentationJob}).
+ * <p>
+ * The packages are instrumented concurrently, each one by a single thread, by
+ * a bounded number of workers. The rules of each engine are loaded once, and
+ * the frames of all the packages are computed with a shared hierarchy of the
+ * JDK and the engine API. A package that fails (e.g., it breaks the rules or
+ * it doesn't exist) is reported, and the rest of the batch goes on.
+ */
+final class InstrumentationBatch implements AutoCloseable {
+    private static final Logger log = LogManager.getRootLogger();
+
+    private final int parallelism;
+    private final Map<String, RuleSet> rules = new HashMap<>();
+    private final ClassHierarchy hierarchy;
+
+    /**
+     * @param apiJarPaths Jar files of the engine API, to compute the frames.
+     */
+    InstrumentationBatch(int parallelism, List<Path> apiJarPaths) throws IOException {
+        this.parallelism = Math.max(1, parallelism);
+        hierarchy = new ClassHierarchy(apiJarPaths, ClassLoader.getPlatformClassLoader(), null);
+    }
+
+    /**
+     * Reads the jobs of a manifest. The returned jobs have the default
+     * options, to be set by the caller.
+     *
+     * @throws IllegalArgumentException If a line is not valid.
+     */
+    static List<InstrumentationJob> readManifest(Path manifest) throws IOException {
+        List<InstrumentationJob> jobs = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            String line;
+            for (int lineNumber = 1; (line = reader.readLine()) != null; lineNumber++) {
+                int indexOfComment = line.indexOf('#');
+                if (indexOfComment != -1) line = line.substring(0, indexOfComment);
+                if (line.isBlank()) continue;
+                String[] tokens = line.trim().split("\\s+");
+                if (tokens.length < 3 || tokens.length > 4) {
+                    throw new IllegalArgumentException("Invalid line " + lineNumber + " of manifest `" + manifest +
+                            "`: `<engine> <build path or jar> <package> [<output>]` expected");
+                }
+                InstrumentationJob job = new InstrumentationJob(tokens[0], tokens[2]);
+                if (tokens[1].endsWith(".jar")) {
+                    job.jarPath = tokens[1];
+                } else {
+                    job.buildPath = tokens[1];
+                }
+                if (tokens.length == 4) job.outputPath = tokens[3];
+                jobs.add(job);
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Runs the jobs and waits for all of them.
+     *
+     * @return The result of each job, in the same order, as in the
+     * {@link InstrumentationServer}: the package ({@code id}), {@code status}
+     * ({@code ok}, {@code violation} or {@code error}), {@code message} and
+     * {@code millis}.
+     */
+    List<Map<String, Object>> run(List<InstrumentationJob> jobs) {
+        // The rules are loaded up front, so that the workers only read them
+        Map<String, Exception> ruleErrors = new HashMap<>();
+        for (InstrumentationJob job : jobs) {
+            if (rules.containsKey(job.engine) || ruleErrors.containsKey(job.engine)) continue;
+            try {
+                rules.put(job.engine, Main.loadRules(job.engine));
+            } catch (IOException | IllegalArgumentException e) {
+                ruleErrors.put(job.engine, e);
+            }
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, jobs.size())));
+        try {
+            List<Future<Map<String, Object>>> futures = new ArrayList<>();
+            for (InstrumentationJob job : jobs) {
+                job.parallelism = 1;
+                job.sharedHierarchy = hierarchy;
+                futures.add(workers.submit(() -> run(job, ruleErrors.get(job.engine))));
+            }
+            List<Map<String, Object>> results = new ArrayList<>();
+            for (Future<Map<String, Object>> future : futures) results.add(await(future));
+            return results;
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    private Map<String, Object> run(InstrumentationJob job, Exception ruleError) {
+        long start = System.nanoTime();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("id", job.packageName);
+        try {
+            if (ruleError != null) throw ruleError;
+            job.run(rules.get(job.engine));
+            result.put("status", "ok");
+        } catch (ViolationException e) {
+            result.put("status", "violation");
+            result.put("message", e.getMessage());
+        } catch (TypeNotPresentException e) {
+            result.put("status", "error");
+            result.put("message", "Class `" + e.typeName() + "` not found to compute the frames");
+        } catch (Exception e) {
+            log.debug("InstrumentationBatch::run " + job, e);
+            result.put("status", "error");
+            result.put("message", e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+        result.put("millis", (System.nanoTime() - start) / 1_000_000);
+        return result;
+    }
+
+    private static Map<String, Object> await(Future<Map<String, Object>> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for the batch");
+        } catch (ExecutionException e) {
+            // The jobs catch their own exceptions, so this is a bug
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        hierarchy.close();
+    }
+}
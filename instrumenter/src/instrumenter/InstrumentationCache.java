@@ -0,0 +1,217 @@
+package instrumenter;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.objectweb.asm.ClassReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Class to store instrumented classes in a persistent, content-addressed cache.
+ * <p>
+ * Each instrumented class is stored under the hash of its input bytes and the
+ * hash of everything else the output depends on: the rules (including the
+ * engine), the package, the instrumentation options and the instrumenter
+ * itself. Thus,
+ * unchanged classes can be hard-linked (or copied) from the cache instead of
+ * being instrumented again, and entries never become stale: any change creates
+ * new entries instead.
+ * <p>
+ * The cache is safe to use concurrently, also by several processes, since
+ * entries are written atomically.
+ */
+final class InstrumentationCache {
+    private static final Logger log = LogManager.getRootLogger();
+
+    private final Path dir;
+    private final byte[] configHash;
+    private final AtomicInteger hits = new AtomicInteger(), misses = new AtomicInteger();
+
+    InstrumentationCache(Path dir, Instrumenter instrumenter) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        MessageDigest digest = newDigest();
+        digest.update(toolHash());
+        digest.update(instrumenter.rules.hash());
+        digest.update((instrumenter.packageName + "\n" + instrumenter.options).getBytes(StandardCharsets.UTF_8));
+        configHash = digest.digest();
+    }
+
+    int getHits() {
+        return hits.get();
+    }
+
+    int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Writes the instrumented class file into the output file, either from the
+     * cache or instrumenting it, filling the statistics of the class.
+     */
+    void instrument(Instrumenter instrumenter, byte[] classFile, Path outputFile,
+                    InstrumentationStats.ClassStats classStats) throws IOException {
+        Path entry = getEntry(instrumenter, classFile, classStats);
+        long start = System.nanoTime();
+        // The output may be a link to an entry, so never write through it
+        Files.deleteIfExists(outputFile);
+        link(entry, outputFile);
+        classStats.writeNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Returns the instrumented class file, either from the cache or
+     * instrumenting it, filling the statistics of the class.
+     */
+    byte[] instrument(Instrumenter instrumenter, byte[] classFile, InstrumentationStats.ClassStats classStats)
+            throws IOException {
+        Path entry = getEntry(instrumenter, classFile, classStats);
+        long start = System.nanoTime();
+        byte[] instrumented = Files.readAllBytes(entry);
+        classStats.readNanos += System.nanoTime() - start;
+        return instrumented;
+    }
+
+    /**
+     * Returns the entry of the class file, instrumenting it first if it is
+     * not in the cache yet. Writing the entry counts as writing the class.
+     */
+    private Path getEntry(Instrumenter instrumenter, byte[] classFile, InstrumentationStats.ClassStats classStats)
+            throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(configHash);
+        String key = toHex(digest.digest(classFile));
+        Path entry = dir.resolve(key.substring(0, 2)).resolve(key + ".class");
+        // The rows of the size report, and of the site table when profiling, are stored next to the class (written
+        // before it), so that a hit doesn't parse the class again
+        Path sizesEntry = entry.resolveSibling(key + ".sizes");
+        Path sitesEntry = entry.resolveSibling(key + ".sites");
+        boolean profile = instrumenter.options.profile;
+        if (Files.isRegularFile(entry)) {
+            if (log.isDebugEnabled()) log.debug("InstrumentationCache::getEntry hit " + key);
+            hits.incrementAndGet();
+            long start = System.nanoTime();
+            String className = new ClassReader(classFile).getClassName();
+            if (profile) instrumenter.addSites(className, Files.readString(sitesEntry));
+            Map<String, Integer> originalSizes = new LinkedHashMap<>(), instrumentedSizes = new LinkedHashMap<>();
+            SizeReport.parseRows(Files.readString(sizesEntry), originalSizes, instrumentedSizes);
+            classStats.readNanos += System.nanoTime() - start;
+            // Also warns (or fails, if the budget changed) again about the methods over the size budget
+            instrumenter.checkSizes(className, originalSizes, instrumentedSizes);
+            classStats.className = className;
+            classStats.cached = true;
+            classStats.bytesBefore = classFile.length;
+            classStats.bytesAfter = (int) Files.size(entry);
+            return entry;
+        }
+        if (log.isDebugEnabled()) log.debug("InstrumentationCache::getEntry miss " + key);
+        misses.incrementAndGet();
+        byte[] instrumented = instrumenter.instrument(classFile, classStats);
+        long start = System.nanoTime();
+        Files.createDirectories(entry.getParent());
+        String className = new ClassReader(classFile).getClassName();
+        write(sizesEntry, key, instrumenter.sizes.getRows(className).getBytes(StandardCharsets.UTF_8));
+        if (profile) write(sitesEntry, key, instrumenter.getSites(className).getBytes(StandardCharsets.UTF_8));
+        write(entry, key, instrumented);
+        classStats.writeNanos += System.nanoTime() - start;
+        return entry;
+    }
+
+    /**
+     * Writes an entry atomically.
+     */
+    private static void write(Path entry, String key, byte[] bytes) throws IOException {
+        Path tmp = Files.createTempFile(entry.getParent(), key, ".tmp");
+        try {
+            Files.write(tmp, bytes);
+            Instrumenter.makeReadable(tmp);
+            Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void link(Path entry, Path outputFile) throws IOException {
+        try {
+            Files.createLink(outputFile, entry);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // E.g., the cache and the output are in different file systems
+            Files.copy(entry, outputFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Deletes the files of the output directory that are not in
+     * {@code outputFiles} (i.e., the outputs of deleted classes), and the
+     * directories left empty.
+     */
+    static void prune(Path outputDir, Set<Path> outputFiles) throws IOException {
+        List<Path> paths;
+        try (Stream<Path> stream = Files.walk(outputDir)) {
+            paths = stream.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        for (Path path : paths) {
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> children = Files.list(path)) {
+                    if (!path.equals(outputDir) && children.findAny().isEmpty()) Files.delete(path);
+                }
+            } else if (!outputFiles.contains(path)) {
+                log.debug("InstrumentationCache::prune " + path);
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Hash of the instrumenter code (the jar or the directory of classes it is
+     * loaded from), so that a new version of the instrumenter doesn't reuse
+     * the entries of the previous one.
+     */
+    private static byte[] toolHash() throws IOException {
+        MessageDigest digest = newDigest();
+        CodeSource source = InstrumentationCache.class.getProtectionDomain().getCodeSource();
+        if (source == null) return digest.digest();
+        Path location;
+        try {
+            location = Paths.get(source.getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        if (Files.isDirectory(location)) location = location.resolve("instrumenter");
+        List<Path> files;
+        try (Stream<Path> stream = Files.walk(location)) {
+            files = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            digest.update(location.relativize(file).toString().replace(File.separatorChar, '/')
+                    .getBytes(StandardCharsets.UTF_8));
+            digest.update(Files.readAllBytes(file));
+        }
+        return digest.digest();
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,189 @@
+package instrumenter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class to store an instrumentation job: which package to instrument, where
+ * to read it from and write it to, and how.
+ * <p>
+ * The package is read from {@code <build>/<package>} and written to
+ * {@code <build>/instrumented/<package>} by default, or, if a jar file is
+ * given, read from the jar and written to {@code instrumented/<jar>} next to
+ * it.
+ * <p>
+ * The frames are computed with the hierarchy of the package, the engine API
+ * jars and the JDK by default, or of the package and a shared hierarchy of the
+ * engine API and the JDK (see {@link #sharedHierarchy}).
+ * <p>
+ * A job can also only check the package (see {@link #validateOnly}), which
+ * neither transforms nor writes any class, and estimate the worst-case costs
+ * of its methods (see {@link #costReportPath}), with or without instrumenting
+ * it.
+ */
+final class InstrumentationJob {
+    final String engine, packageName;
+    String buildPath = "", jarPath = "", outputPath = "", cachePath = "";
+    /**
+     * Jar files of the engine API, separated by the path separator.
+     */
+    String apiJarPath = "";
+    /**
+     * Hierarchy of the engine API and the JDK shared by several jobs, if any.
+     * If given, the API jars of the job are not used.
+     */
+    ClassHierarchy sharedHierarchy;
+    /**
+     * Site table file. If given, the classes are instrumented to count the
+     * executions of each basic block (see {@link SiteTable}).
+     */
+    String profilePath = "";
+    /**
+     * Size report file, if any (see {@link SizeReport}).
+     */
+    String sizeReportPath = "";
+    /**
+     * Statistics file, if any (see {@link InstrumentationStats}).
+     */
+    String statsPath = "";
+    /**
+     * Violation report file. If given, the whole package is checked first,
+     * and nothing is instrumented if there is any violation (see
+     * {@link ViolationReport}).
+     */
+    String violationReportPath = "";
+    /**
+     * Cost report file, if any (see {@link CostReport}). The costs are always
+     * estimated counting by blocks, whatever the counting mode of the job.
+     */
+    String costReportPath = "";
+    /**
+     * Acyclic cost over which a method is flagged in the cost report (0 to
+     * disable it).
+     */
+    long costBudget;
+    /**
+     * Whether to only check the package, reporting all its violations,
+     * without instrumenting it nor writing anything (except the violation
+     * report, if given).
+     */
+    boolean validateOnly;
+    final InstrumentationOptions options = new InstrumentationOptions();
+    int parallelism = 1;
+    /**
+     * Cache used by the last run, if any.
+     */
+    InstrumentationCache cache;
+    /**
+     * Code sizes of the last run.
+     */
+    SizeReport sizes;
+    /**
+     * Statistics of the last run.
+     */
+    InstrumentationStats stats;
+
+    InstrumentationJob(String engine, String packageName) {
+        this.engine = engine;
+        this.packageName = packageName;
+    }
+
+    void run(RuleSet rules) throws IOException {
+        if (buildPath.isEmpty() && jarPath.isEmpty()) throw new IllegalArgumentException("Missing build path or jar");
+        options.profile = !profilePath.isEmpty();
+        if (validateOnly) {
+            // The frames are not computed, so the class hierarchy is not needed
+            InstrumentationOptions validationOptions = options.copy();
+            validationOptions.frameMode = FrameMode.KEEP;
+            validate(new Instrumenter(packageName, rules, validationOptions, null));
+            if (!costReportPath.isEmpty()) analyzeCosts(rules);
+            return;
+        }
+        try (ClassHierarchy hierarchy = options.frameMode == FrameMode.HIERARCHY ? newClassHierarchy() : null) {
+            Instrumenter instrumenter = new Instrumenter(packageName, rules, options, hierarchy);
+            if (!violationReportPath.isEmpty()) validate(instrumenter);
+            cache = cachePath.isEmpty() ? null : new InstrumentationCache(Paths.get(cachePath), instrumenter);
+            if (!jarPath.isEmpty()) {
+                Path jar = Paths.get(jarPath);
+                Path output = !outputPath.isEmpty() ? Paths.get(outputPath) :
+                        jar.toAbsolutePath().resolveSibling("instrumented").resolve(jar.getFileName());
+                instrumenter.instrumentJar(jar, output, parallelism, cache);
+            } else {
+                instrumenter.instrumentPackage(
+                        buildPath + "/" + packageName,
+                        !outputPath.isEmpty() ? outputPath : buildPath + "/instrumented/" + packageName,
+                        parallelism, cache
+                );
+            }
+            if (options.profile) instrumenter.writeSiteTable(Paths.get(profilePath));
+            if (!sizeReportPath.isEmpty()) instrumenter.sizes.write(Paths.get(sizeReportPath));
+            if (!statsPath.isEmpty()) instrumenter.stats.write(Paths.get(statsPath));
+            sizes = instrumenter.sizes;
+            stats = instrumenter.stats;
+        }
+        if (!costReportPath.isEmpty()) analyzeCosts(rules);
+    }
+
+    /**
+     * Estimates the costs of the methods of the package and writes the cost
+     * report. The methods are charged as when counting by blocks, without
+     * hoisting the counted loops, so neither the frames nor the hierarchy are
+     * needed.
+     */
+    private void analyzeCosts(RuleSet rules) throws IOException {
+        InstrumentationOptions analysisOptions = options.copy();
+        analysisOptions.countingMode = CountingMode.BLOCK;
+        analysisOptions.frameMode = FrameMode.KEEP;
+        analysisOptions.profile = false;
+        analysisOptions.chargeStubs = false;
+        analysisOptions.hoistLoops = false;
+        analysisOptions.inlineBudget = false;
+        analysisOptions.sizeBudget = 0;
+        CostReport costs = new CostReport(packageName, costBudget);
+        new Instrumenter(packageName, rules, analysisOptions, null)
+                .analyzeCosts(Paths.get(jarPath.isEmpty() ? buildPath + "/" + packageName : jarPath), costs);
+        costs.write(Paths.get(costReportPath));
+    }
+
+    /**
+     * Checks the whole package and writes the violation report, if any.
+     *
+     * @throws ViolationException If there is any violation, with their
+     *                            summary.
+     */
+    private void validate(Instrumenter instrumenter) throws IOException {
+        ViolationReport violations = new ViolationReport();
+        instrumenter.validate(Paths.get(jarPath.isEmpty() ? buildPath + "/" + packageName : jarPath), violations);
+        if (!violationReportPath.isEmpty()) violations.write(Paths.get(violationReportPath));
+        if (violations.isEmpty()) return;
+        if (!violationReportPath.isEmpty()) {
+            throw new ViolationException("The package has " + violations + " (see `" + violationReportPath + "`)");
+        }
+        StringBuilder message = new StringBuilder("The package has " + violations + ":");
+        for (String violation : violations.getMessages()) message.append("\n- ").append(violation);
+        throw new ViolationException(message.toString());
+    }
+
+    /**
+     * Creates the hierarchy of the classes seen by the package: its own
+     * classes, the engine API and the JDK.
+     */
+    private ClassHierarchy newClassHierarchy() throws IOException {
+        List<Path> classPath = new ArrayList<>();
+        classPath.add(Paths.get(jarPath.isEmpty() ? buildPath : jarPath));
+        if (sharedHierarchy != null) return new ClassHierarchy(classPath, null, sharedHierarchy);
+        for (String apiJar : apiJarPath.split(File.pathSeparator)) {
+            if (!apiJar.isBlank()) classPath.add(Paths.get(apiJar.trim()));
+        }
+        return new ClassHierarchy(classPath, ClassLoader.getPlatformClassLoader(), null);
+    }
+
+    @Override
+    public String toString() {
+        return engine + " " + (jarPath.isEmpty() ? buildPath : jarPath) + " " + packageName;
+    }
+}
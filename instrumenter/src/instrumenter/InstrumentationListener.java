@@ -0,0 +1,16 @@
+package instrumenter;
+
+/**
+ * Listener of the classes instrumented by an {@link Instrumenter} (see
+ * {@link Instrumenter#addListener}).
+ * <p>
+ * It is notified by the thread that instrumented the class, so it must be
+ * safe to call concurrently when instrumenting with several threads.
+ */
+interface InstrumentationListener {
+    /**
+     * Called once a class has been instrumented (or taken from the cache) and
+     * written, if it is written by the instrumenter.
+     */
+    void classInstrumented(InstrumentationStats.ClassStats stats);
+}
@@ -0,0 +1,85 @@
+package instrumenter;
+
+/**
+ * Class to store how the classes are instrumented.
+ * <p>
+ * An {@link Instrumenter} keeps its own copy of the options, so they can't
+ * change while it is instrumenting.
+ */
+final class InstrumentationOptions {
+    CountingMode countingMode = CountingMode.INSTRUCTION;
+    FrameMode frameMode = FrameMode.HIERARCHY;
+    DebugMode debugMode = DebugMode.KEEP;
+    /**
+     * Whether to count the executions of each basic block (see
+     * {@link SiteTable}).
+     */
+    boolean profile;
+    /**
+     * Whether to share the bytecodes counters of each class through static
+     * methods (see {@link ChargeStubs}).
+     */
+    boolean chargeStubs;
+    /**
+     * Whether to charge the counted loops once before entering them, instead
+     * of on every iteration (see {@link CountedLoop}).
+     */
+    boolean hoistLoops;
+    /**
+     * Whether to check the budget of the engine inline, instead of invoking
+     * its counter on every charge (see {@link BytecodeCounter}).
+     */
+    boolean inlineBudget;
+    /**
+     * Code size, in bytes, over which an instrumented method is reported (0 to
+     * disable it). By default, the size over which HotSpot doesn't compile a
+     * method.
+     */
+    int sizeBudget = 8000;
+    /**
+     * Whether the methods over the size budget are a violation, instead of a
+     * warning.
+     */
+    boolean failOverBudget;
+
+    InstrumentationOptions copy() {
+        InstrumentationOptions options = new InstrumentationOptions();
+        options.countingMode = countingMode;
+        options.frameMode = frameMode;
+        options.debugMode = debugMode;
+        options.profile = profile;
+        options.chargeStubs = chargeStubs;
+        options.hoistLoops = hoistLoops;
+        options.inlineBudget = inlineBudget;
+        options.sizeBudget = sizeBudget;
+        options.failOverBudget = failOverBudget;
+        return options;
+    }
+
+    /**
+     * Checks that the options can be used together.
+     */
+    void validate() {
+        if (profile && countingMode == CountingMode.INSTRUCTION) {
+            throw new IllegalArgumentException("Profiling requires counting by blocks (block or local)");
+        }
+        if (hoistLoops && (countingMode == CountingMode.INSTRUCTION || frameMode == FrameMode.KEEP || profile)) {
+            throw new IllegalArgumentException("Hoisting loops requires counting by blocks (block or local), " +
+                    "computing the frames, and not profiling");
+        }
+        if (inlineBudget && frameMode == FrameMode.KEEP) {
+            throw new IllegalArgumentException("Checking the budget inline requires computing the frames");
+        }
+    }
+
+    /**
+     * Returns all the options, so that instrumenting with the same options
+     * gives the same result.
+     */
+    @Override
+    public String toString() {
+        return "counting=" + countingMode + " frames=" + frameMode + " debug=" + debugMode + " profile=" + profile +
+                " chargeStubs=" + chargeStubs + " hoistLoops=" + hoistLoops + " inlineBudget=" + inlineBudget +
+                " sizeBudget=" + sizeBudget + " failOverBudget=" + failOverBudget;
+    }
+}
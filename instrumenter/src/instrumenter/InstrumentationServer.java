@@ -0,0 +1,222 @@
+package instrumenter;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Class to serve instrumentation jobs from a long-running process, so that the
+ * JVM startup and the loading of the rules are paid once, not once per job.
+ * <p>
+ * Jobs are received one per line, as JSON objects, either through stdin or
+ * through a Unix-domain socket (any number of connections). The fields of a
+ * job are:
+ * - {@code id}: Any value, returned as is in the result.
+ * - {@code engine}, {@code package}: Same as the command line arguments.
+ * - {@code build} or {@code jar}: Same as the command line arguments.
+ * - {@code output}, {@code counting}, {@code frames}, {@code debug},
+ * {@code api-jar}, {@code profile}, {@code size-budget}, {@code size-report},
+ * {@code stats}, {@code violation-report}, {@code cost-report},
+ * {@code cost-budget}, {@code threads}, {@code cache} (optional): Same as
+ * the command line arguments. Jobs are instrumented by a single thread,
+ * unless {@code threads} says otherwise.
+ * - {@code charge-stubs}, {@code hoist-loops}, {@code inline-budget},
+ * {@code size-budget-fail}, {@code validate-only}
+ * (optional): Booleans, same as the command line flags.
+ * <p>
+ * Jobs run concurrently, and the result of each job is written as soon as it
+ * finishes, as a JSON object in a single line, with the fields:
+ * - {@code id}: The id of the job.
+ * - {@code status}: {@code ok}, {@code violation} (the package breaks the
+ * rules) or {@code error} (e.g., invalid job or missing files).
+ * - {@code message}: The violation or error, if any.
+ * - {@code millis}: The time taken by the job.
+ */
+final class InstrumentationServer {
+    private static final Logger log = LogManager.getRootLogger();
+
+    private final ExecutorService workers;
+    /**
+     * Jobs of a connection that may be queued or running at once; reading the
+     * connection waits while there are this many.
+     */
+    private final int maxPending;
+    private final Map<String, RuleSet> rules = new ConcurrentHashMap<>();
+
+    InstrumentationServer(int parallelism) {
+        workers = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        maxPending = 4 * Math.max(1, parallelism);
+    }
+
+    /**
+     * Serves the jobs read from the input until it is closed, and waits for
+     * them to finish.
+     */
+    void serve(InputStream in, OutputStream out) throws IOException {
+        try {
+            serveConnection(in, out);
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Serves the jobs received through a Unix-domain socket, until the process
+     * is killed.
+     */
+    void serve(Path socket) throws IOException {
+        Files.deleteIfExists(socket);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            log.info("Serving instrumentation jobs at `" + socket + "`");
+            while (true) {
+                SocketChannel channel = server.accept();
+                Thread thread = new Thread(() -> {
+                    try (channel) {
+                        serveConnection(Channels.newInputStream(channel), Channels.newOutputStream(channel));
+                    } catch (IOException e) {
+                        log.warn("Connection closed: " + e.getMessage());
+                    }
+                }, "instrumenter-connection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } finally {
+            workers.shutdownNow();
+            Files.deleteIfExists(socket);
+        }
+    }
+
+    private void serveConnection(InputStream in, OutputStream out) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        Semaphore pending = new Semaphore(maxPending);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isBlank()) continue;
+            String request = line;
+            acquire(pending, 1);
+            workers.execute(() -> {
+                try {
+                    respond(writer, run(request));
+                } finally {
+                    pending.release();
+                }
+            });
+        }
+        // Wait for the results before closing the connection
+        acquire(pending, maxPending);
+    }
+
+    private static void acquire(Semaphore pending, int permits) throws InterruptedIOException {
+        try {
+            pending.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the jobs");
+        }
+    }
+
+    private static void respond(Writer writer, Map<String, Object> result) {
+        synchronized (writer) {
+            try {
+                writer.write(Json.write(result));
+                writer.write('\n');
+                writer.flush();
+            } catch (IOException e) {
+                log.warn("Unable to send result: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Runs the job of a request.
+     *
+     * @return The result of the job.
+     */
+    Map<String, Object> run(String request) {
+        long start = System.nanoTime();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("id", null);
+        try {
+            Object parsed = Json.parse(request);
+            if (!(parsed instanceof Map)) throw new IllegalArgumentException("The job must be a JSON object");
+            Map<?, ?> job = (Map<?, ?>) parsed;
+            result.put("id", job.get("id"));
+            run(job);
+            result.put("status", "ok");
+        } catch (ViolationException e) {
+            result.put("status", "violation");
+            result.put("message", e.getMessage());
+        } catch (Exception e) {
+            log.debug("InstrumentationServer::run " + request, e);
+            result.put("status", "error");
+            result.put("message", e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+        result.put("millis", (System.nanoTime() - start) / 1_000_000);
+        return result;
+    }
+
+    private void run(Map<?, ?> fields) throws IOException {
+        InstrumentationJob job = new InstrumentationJob(getField(fields, "engine", null),
+                getField(fields, "package", null));
+        job.buildPath = getField(fields, "build", "");
+        job.jarPath = getField(fields, "jar", "");
+        job.outputPath = getField(fields, "output", "");
+        job.cachePath = getField(fields, "cache", "");
+        job.apiJarPath = getField(fields, "api-jar", "");
+        job.profilePath = getField(fields, "profile", "");
+        job.sizeReportPath = getField(fields, "size-report", "");
+        job.statsPath = getField(fields, "stats", "");
+        job.violationReportPath = getField(fields, "violation-report", "");
+        job.costReportPath = getField(fields, "cost-report", "");
+        job.costBudget = (long) Double.parseDouble(getField(fields, "cost-budget", "0"));
+        job.validateOnly = Boolean.parseBoolean(getField(fields, "validate-only", "false"));
+        job.options.countingMode = CountingMode.valueOf(getField(fields, "counting", "instruction").toUpperCase());
+        job.options.frameMode = FrameMode.valueOf(getField(fields, "frames", "hierarchy").toUpperCase());
+        job.options.debugMode = DebugMode.valueOf(getField(fields, "debug", "keep").toUpperCase());
+        job.options.chargeStubs = Boolean.parseBoolean(getField(fields, "charge-stubs", "false"));
+        job.options.hoistLoops = Boolean.parseBoolean(getField(fields, "hoist-loops", "false"));
+        job.options.inlineBudget = Boolean.parseBoolean(getField(fields, "inline-budget", "false"));
+        job.options.sizeBudget = (int) Double.parseDouble(getField(fields, "size-budget", "8000"));
+        job.options.failOverBudget = Boolean.parseBoolean(getField(fields, "size-budget-fail", "false"));
+        job.parallelism = (int) Double.parseDouble(getField(fields, "threads", "1"));
+        log.debug("InstrumentationServer::run " + job);
+        job.run(getRules(job.engine));
+    }
+
+    private RuleSet getRules(String engine) throws IOException {
+        try {
+            return rules.computeIfAbsent(engine, e -> {
+                try {
+                    return Main.loadRules(e);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static String getField(Map<?, ?> job, String name, String defaultValue) {
+        Object value = job.get(name);
+        if (value == null) {
+            if (defaultValue == null) throw new IllegalArgumentException("Missing field `" + name + "`");
+            return defaultValue;
+        }
+        return value.toString().trim();
+    }
+}
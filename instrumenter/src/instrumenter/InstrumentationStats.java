@@ -0,0 +1,138 @@
+package instrumenter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class to collect the statistics of an instrumentation run: what was
+ * instrumented, how much it grew and where the time went, per class and in
+ * total.
+ * <p>
+ * The statistics are written as a JSON object with the fields:
+ * - {@code classes}, {@code methods}, {@code counterSites}: The classes and
+ * methods instrumented, and the counters injected into them (increments of the
+ * bytecodes count, of the local counter, and its flushes).
+ * - {@code bytesBefore}, {@code bytesAfter}: The size of the class files.
+ * - {@code readMillis}, {@code transformMillis}, {@code writeMillis}: The time
+ * spent reading, instrumenting and writing the classes, summed over all the
+ * threads.
+ * - {@code cacheHits}, {@code cacheMisses}: The classes taken from the cache,
+ * if any, and the ones instrumented.
+ * - {@code checkHits}, {@code checkMisses}: The names (classes, descriptors
+ * and signatures) that were already checked, and the ones checked.
+ * - {@code perClass}: The same for each class, sorted by name, with its
+ * {@code class} and whether it was {@code cached} instead of the hits and
+ * misses. The methods and counters of the cached classes are not known.
+ * <p>
+ * The statistics are safe to fill concurrently.
+ */
+final class InstrumentationStats {
+    private final Map<String, ClassStats> classes = new TreeMap<>();
+    private final LongAdder checkHits = new LongAdder(), checkMisses = new LongAdder();
+
+    /**
+     * Statistics of a class, filled as it goes through the instrumentation.
+     */
+    static final class ClassStats {
+        String className;
+        int methods, counterSites, bytesBefore, bytesAfter;
+        long readNanos, transformNanos, writeNanos;
+        /**
+         * Whether the class was taken from the cache, instead of instrumented.
+         */
+        boolean cached;
+
+        Map<String, Object> toJson() {
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("class", className);
+            json.put("cached", cached);
+            json.put("methods", methods);
+            json.put("counterSites", counterSites);
+            json.put("bytesBefore", bytesBefore);
+            json.put("bytesAfter", bytesAfter);
+            json.put("readMillis", toMillis(readNanos));
+            json.put("transformMillis", toMillis(transformNanos));
+            json.put("writeMillis", toMillis(writeNanos));
+            return json;
+        }
+    }
+
+    /**
+     * Adds a class, replacing the one added before with the same name, if any.
+     */
+    synchronized void add(ClassStats stats) {
+        classes.put(stats.className, stats);
+    }
+
+    /**
+     * Counts a check of a name, either already checked or not.
+     */
+    void countCheck(boolean hit) {
+        (hit ? checkHits : checkMisses).increment();
+    }
+
+    synchronized Map<String, Object> toJson() {
+        long methods = 0, counterSites = 0, bytesBefore = 0, bytesAfter = 0, read = 0, transform = 0, write = 0;
+        int cached = 0;
+        List<Map<String, Object>> perClass = new ArrayList<>();
+        for (ClassStats stats : classes.values()) {
+            methods += stats.methods;
+            counterSites += stats.counterSites;
+            bytesBefore += stats.bytesBefore;
+            bytesAfter += stats.bytesAfter;
+            read += stats.readNanos;
+            transform += stats.transformNanos;
+            write += stats.writeNanos;
+            if (stats.cached) cached++;
+            perClass.add(stats.toJson());
+        }
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("classes", classes.size());
+        json.put("methods", methods);
+        json.put("counterSites", counterSites);
+        json.put("bytesBefore", bytesBefore);
+        json.put("bytesAfter", bytesAfter);
+        json.put("readMillis", toMillis(read));
+        json.put("transformMillis", toMillis(transform));
+        json.put("writeMillis", toMillis(write));
+        json.put("cacheHits", cached);
+        json.put("cacheMisses", classes.size() - cached);
+        json.put("checkHits", checkHits.sum());
+        json.put("checkMisses", checkMisses.sum());
+        json.put("perClass", perClass);
+        return json;
+    }
+
+    void write(Path file) throws IOException {
+        Files.writeString(file, Json.write(toJson()) + "\n");
+    }
+
+    /**
+     * Returns the totals, e.g., {@code 12 classes, 80 methods, 950 counter
+     * sites (read 3 ms, transform 120 ms, write 8 ms)}.
+     */
+    @Override
+    public synchronized String toString() {
+        long methods = 0, counterSites = 0, read = 0, transform = 0, write = 0;
+        for (ClassStats stats : classes.values()) {
+            methods += stats.methods;
+            counterSites += stats.counterSites;
+            read += stats.readNanos;
+            transform += stats.transformNanos;
+            write += stats.writeNanos;
+        }
+        return classes.size() + (classes.size() == 1 ? " class, " : " classes, ") + methods + " methods, " +
+                counterSites + " counter sites (read " + Math.round(toMillis(read)) + " ms, transform " +
+                Math.round(toMillis(transform)) + " ms, write " + Math.round(toMillis(write)) + " ms)";
+    }
+
+    /**
+     * Converts to milliseconds, rounded to microseconds.
+     */
+    private static double toMillis(long nanos) {
+        return Math.round(nanos / 1e3) / 1e3;
+    }
+}
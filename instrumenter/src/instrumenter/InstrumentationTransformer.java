@@ -0,0 +1,108 @@
+package instrumenter;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.ProtectionDomain;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class to instrument the classes of a package in memory, as they are defined
+ * by a class loader.
+ * <p>
+ * The instrumented classes are kept in memory under the hash of their input
+ * bytes, so the classes loaded again by new class loaders (e.g., one per
+ * match) are not instrumented again. The classes used by the package, needed
+ * to compute the frames, are found through the defining class loader, in a
+ * hierarchy kept for each loader while it is alive.
+ * <p>
+ * Exceptions thrown by a transformer are ignored by the JVM, which would then
+ * define the original class. Thus, the classes that can not be instrumented
+ * (e.g., because of a violation) are replaced by an invalid class file (an
+ * empty one would be ignored too), so their definition fails with a
+ * {@link ClassFormatError}.
+ * <p>
+ * When profiling, the rows of the site table of each class instrumented are
+ * appended to the site table file.
+ */
+final class InstrumentationTransformer implements ClassFileTransformer {
+    private static final Logger log = LogManager.getRootLogger();
+    private static final byte[] INVALID_CLASS_FILE = new byte[4];
+
+    private final Instrumenter instrumenter;
+    private final Path siteTableFile;
+    private final String packagePrefix;
+    private final Map<String, byte[]> cache = new ConcurrentHashMap<>();
+    /**
+     * Hierarchy of the classes seen by each defining class loader (only when
+     * computing the frames with the hierarchy).
+     */
+    private final Map<ClassLoader, ClassHierarchy> hierarchies = new WeakHashMap<>();
+
+    /**
+     * @param siteTableFile Site table file, with its header already written
+     *                      (only when profiling).
+     */
+    InstrumentationTransformer(Instrumenter instrumenter, Path siteTableFile) {
+        this.instrumenter = instrumenter;
+        this.siteTableFile = siteTableFile;
+        this.packagePrefix = instrumenter.packageName + "/";
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classFileBuffer) {
+        // Only the classes of the package, the first time they are defined
+        if (className == null || !className.startsWith(packagePrefix)) return null;
+        if (loader == null || classBeingRedefined != null) return null;
+        if (log.isDebugEnabled()) log.debug("InstrumentationTransformer::transform " + className);
+        String key = InstrumentationCache.toHex(InstrumentationCache.newDigest().digest(classFileBuffer));
+        byte[] instrumented = cache.get(key);
+        if (instrumented != null) {
+            if (log.isDebugEnabled()) log.debug("InstrumentationTransformer::transform hit " + key);
+            return instrumented;
+        }
+        try {
+            ClassHierarchy hierarchy = instrumenter.options.frameMode == FrameMode.HIERARCHY ?
+                    getHierarchy(loader) : null;
+            instrumented = instrumenter.instrument(classFileBuffer, hierarchy, loader);
+            if (siteTableFile != null) appendSites(className);
+        } catch (ViolationException e) {
+            log.error(e.getMessage());
+            return INVALID_CLASS_FILE;
+        } catch (Throwable e) {
+            log.error("Unable to instrument class `" + className + "`", e);
+            return INVALID_CLASS_FILE;
+        }
+        if (log.isDebugEnabled()) log.debug("InstrumentationTransformer::transform miss " + key);
+        cache.put(key, instrumented);
+        return instrumented;
+    }
+
+    /**
+     * Returns the hierarchy of the classes of a loader, on top of the ones
+     * known by the instrumenter (e.g., the JDK), creating it the first time.
+     */
+    private ClassHierarchy getHierarchy(ClassLoader loader) throws IOException {
+        synchronized (hierarchies) {
+            ClassHierarchy hierarchy = hierarchies.get(loader);
+            if (hierarchy == null) {
+                hierarchy = new ClassHierarchy(List.of(), loader, instrumenter.hierarchy);
+                hierarchies.put(loader, hierarchy);
+            }
+            return hierarchy;
+        }
+    }
+
+    private synchronized void appendSites(String className) throws IOException {
+        Files.writeString(siteTableFile, instrumenter.getSites(className), StandardOpenOption.APPEND);
+    }
+}
@@ -3,147 +3,668 @@ package instrumenter;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodTooLargeException;
 import org.objectweb.asm.signature.SignatureReader;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 /**
- * Class with static methods and attributes to manage the instrumentation.
+ * Class to manage the instrumentation of a package.
  * <p>
  * This class iterates over all directories and files of a package and uses the
  * class, method, and signature instrumenters to instrument their code. It also
- * implements methods to validate the classes and methods used.
+ * implements methods to validate the classes and methods used, which throw a
+ * {@link ViolationException} when they are prohibited.
+ * <p>
+ * Instances are immutable (except for the memo of the names already checked,
+ * and the site table, sizes and statistics collected), so the same
+ * instrumenter can instrument several classes concurrently. The
+ * state of the class being instrumented is kept by its
+ * {@link ClassInstrumenter}.
+ * <p>
+ * The statistics of each class instrumented are collected (see
+ * {@link InstrumentationStats}), and given to the listeners, if any.
  */
 class Instrumenter {
     private static final Logger log = LogManager.getRootLogger();
+    /**
+     * Prefix of the names of the fields and methods added by the instrumenter.
+     */
+    static final String RESERVED_PREFIX = "$Aic";
+
+    final String packageName;
+    final RuleSet rules;
+    final InstrumentationOptions options;
+    /**
+     * Emitter of the increments of the bytecodes count, for the options.
+     */
+    final BytecodeCounter counter;
+    /**
+     * Hierarchy of the classes seen by the package, to compute the frames
+     * (only used with {@link FrameMode#HIERARCHY}).
+     */
+    final ClassHierarchy hierarchy;
+    /**
+     * Names already checked, and valid, during this run.
+     */
+    private final Set<String> validClasses = ConcurrentHashMap.newKeySet(),
+            validDescriptors = ConcurrentHashMap.newKeySet(), validSignatures = ConcurrentHashMap.newKeySet();
+    /**
+     * Rows of the site table of each class instrumented during this run, when
+     * profiling, sorted by class name so that the table does not depend on
+     * the order the classes are instrumented in.
+     */
+    private final Map<String, String> siteTable = new ConcurrentSkipListMap<>();
+    /**
+     * Code sizes of the methods of the classes instrumented during this run.
+     */
+    final SizeReport sizes = new SizeReport();
+    /**
+     * Statistics of the classes instrumented during this run.
+     */
+    final InstrumentationStats stats = new InstrumentationStats();
+    private final List<InstrumentationListener> listeners = new CopyOnWriteArrayList<>();
+
+    Instrumenter(String packageName, RuleSet rules, InstrumentationOptions options, ClassHierarchy hierarchy) {
+        this.packageName = packageName;
+        this.rules = rules;
+        this.options = options.copy();
+        this.hierarchy = hierarchy;
+        this.options.validate();
+        this.counter = new BytecodeCounter(rules, this.options.inlineBudget);
+        if (this.options.frameMode == FrameMode.HIERARCHY && hierarchy == null) {
+            throw new IllegalArgumentException("Missing class hierarchy");
+        }
+    }
 
-    private static Map<String, Integer> methodBytecodeCosts;
-    private static Set<String> allowedLibraries, disallowedClasses;
-    private static Map<String, List<String>> disallowedMethods;
-
-    static String packageName;
-
-    static void instrumentPackage(String packageName, String path, String outputPath,
-                                  Map<String, Integer> methodBytecodeCosts, Set<String> allowedLibraries,
-                                  Set<String> disallowedClasses, Map<String, List<String>> disallowedMethods) throws IOException {
-        log.debug("Instrumenter::instrumentPackage " + packageName + " " + path + " " + outputPath);
-        // Setup static attributes
-        Instrumenter.packageName = packageName;
-        Instrumenter.methodBytecodeCosts = methodBytecodeCosts;
-        Instrumenter.allowedLibraries = allowedLibraries;
-        Instrumenter.disallowedClasses = disallowedClasses;
-        Instrumenter.disallowedMethods = disallowedMethods;
+    /**
+     * Adds a listener of the classes instrumented from now on.
+     */
+    void addListener(InstrumentationListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Adds the statistics of a class, once it is done, and notifies the
+     * listeners.
+     */
+    void classInstrumented(InstrumentationStats.ClassStats classStats) {
+        stats.add(classStats);
+        for (InstrumentationListener listener : listeners) listener.classInstrumented(classStats);
+    }
+
+    /**
+     * Instruments all the files of the package, using up to
+     * {@code parallelism} threads. The output does not depend on the number of
+     * threads.
+     * <p>
+     * If a cache is given, unchanged classes are taken from it, and the
+     * outputs of deleted classes are removed.
+     */
+    void instrumentPackage(String path, String outputPath, int parallelism, InstrumentationCache cache)
+            throws IOException {
+        log.debug("Instrumenter::instrumentPackage " + packageName + " " + path + " " + outputPath + " " +
+                options + " " + parallelism);
         // Instrument the whole directory
         File dir = new File(path);
         if (!dir.isDirectory()) throw new RuntimeException("Input path '" + path + "' is not a directory");
-        instrumentDir(dir, outputPath);
+        List<File[]> files = new ArrayList<>();
+        instrumentDir(dir, outputPath, files);
+        if (cache != null) {
+            Set<Path> outputFiles = new HashSet<>();
+            for (File[] file : files) outputFiles.add(file[1].toPath());
+            InstrumentationCache.prune(Paths.get(outputPath), outputFiles);
+        }
+        if (parallelism <= 1) {
+            for (File[] file : files) instrumentFile(file[0], file[1], cache);
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (File[] file : files) {
+                futures.add(pool.submit(() -> {
+                    instrumentFile(file[0], file[1], cache);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) await(future);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Instruments all the classes of a jar (or zip) file into a new jar file.
+     * <p>
+     * The entries are streamed from the input, which is memory-mapped, to the
+     * output, so nothing is extracted to disk. Other entries than classes are
+     * copied as they are. The output is written to a temporary file that
+     * replaces the output file once complete, so the output file is never
+     * left half-written.
+     */
+    void instrumentJar(Path input, Path output, int parallelism, InstrumentationCache cache) throws IOException {
+        log.debug("Instrumenter::instrumentJar " + packageName + " " + input + " " + output + " " + options +
+                " " + parallelism);
+        Path outputDir = output.toAbsolutePath().getParent();
+        Files.createDirectories(outputDir);
+        Path tmp = Files.createTempFile(outputDir, output.getFileName().toString(), ".tmp");
+        ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        try {
+            try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ);
+                 ZipInputStream zis = new ZipInputStream(
+                         new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())));
+                 ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(Channels.newOutputStream(
+                         FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))))) {
+                // Entries being instrumented, written in the same order as in the input
+                Deque<PendingEntry> pending = new ArrayDeque<>();
+                ZipEntry entry;
+                while ((entry = zis.getNextEntry()) != null) {
+                    long start = System.nanoTime();
+                    byte[] bytes = zis.readAllBytes();
+                    Callable<byte[]> task = () -> bytes;
+                    InstrumentationStats.ClassStats classStats = null;
+                    if (isClassEntry(entry)) {
+                        InstrumentationStats.ClassStats stats = new InstrumentationStats.ClassStats();
+                        stats.readNanos = System.nanoTime() - start;
+                        task = () -> cache != null ? cache.instrument(this, bytes, stats) : instrument(bytes, stats);
+                        classStats = stats;
+                    }
+                    pending.add(new PendingEntry(entry, pool != null ? pool.submit(task) : completed(task),
+                            classStats));
+                    // Limit the entries in memory
+                    while (pending.size() > 4 * parallelism) writeEntry(zos, pending.poll());
+                }
+                while (!pending.isEmpty()) writeEntry(zos, pending.poll());
+            }
+            makeReadable(tmp);
+            Files.move(tmp, output, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            if (pool != null) pool.shutdownNow();
+            Files.deleteIfExists(tmp);
+        }
     }
 
-    private static void instrumentDir(File dir, String outputPath) throws IOException {
-        log.debug("Instrumenter::instrumentDir " + dir + " " + outputPath);
+    /**
+     * Gives a temporary file the permissions of a regular file, since they are
+     * only readable by the owner.
+     */
+    static void makeReadable(Path tmp) throws IOException {
+        try {
+            Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-r--r--"));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system
+        }
+    }
+
+    private static boolean isClassEntry(ZipEntry entry) {
+        return !entry.isDirectory() && entry.getName().endsWith(".class")
+                && !entry.getName().endsWith("module-info.class");
+    }
+
+    private void writeEntry(ZipOutputStream zos, PendingEntry pending) throws IOException {
+        ZipEntry entry = pending.entry;
+        byte[] bytes = await(pending.bytes);
+        long start = System.nanoTime();
+        if (log.isDebugEnabled()) log.debug("Instrumenter::writeEntry " + entry.getName());
+        ZipEntry newEntry = new ZipEntry(entry.getName());
+        newEntry.setTime(entry.getTime());
+        newEntry.setComment(entry.getComment());
+        newEntry.setExtra(entry.getExtra());
+        if (entry.getMethod() == ZipEntry.STORED) {
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            newEntry.setMethod(ZipEntry.STORED);
+            newEntry.setSize(bytes.length);
+            newEntry.setCompressedSize(bytes.length);
+            newEntry.setCrc(crc.getValue());
+        }
+        zos.putNextEntry(newEntry);
+        zos.write(bytes);
+        zos.closeEntry();
+        if (pending.stats != null) {
+            pending.stats.writeNanos += System.nanoTime() - start;
+            classInstrumented(pending.stats);
+        }
+    }
+
+    private static <T> Future<T> completed(Callable<T> task) throws IOException {
+        try {
+            return CompletableFuture.completedFuture(task.call());
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Waits for the result of a task, rethrowing its exception, if any.
+     */
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Instrumentation interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Creates the output directories and collects the files to instrument,
+     * paired with their output file.
+     */
+    private void instrumentDir(File dir, String outputPath, List<File[]> files) {
+        if (log.isDebugEnabled()) log.debug("Instrumenter::instrumentDir " + dir + " " + outputPath);
         new File(outputPath).mkdirs();
         for (File file : dir.listFiles()) {
             String newOutputPath = outputPath + "/" + file.getName();
             if (file.isFile()) {
-                instrumentFile(file, newOutputPath);
+                files.add(new File[]{file, new File(newOutputPath)});
             } else if (file.isDirectory()) {
-                instrumentDir(file, newOutputPath);
+                instrumentDir(file, newOutputPath, files);
             }
         }
     }
 
-    private static void instrumentFile(File file, String outputPath) throws IOException {
-        log.debug("Instrumenter::instrumentFile " + file + " " + outputPath);
+    private void instrumentFile(File file, File outputFile, InstrumentationCache cache) throws IOException {
+        if (log.isDebugEnabled()) log.debug("Instrumenter::instrumentFile " + file + " " + outputFile);
+        InstrumentationStats.ClassStats classStats = new InstrumentationStats.ClassStats();
+        long start = System.nanoTime();
+        byte[] classFile = Files.readAllBytes(file.toPath());
+        classStats.readNanos = System.nanoTime() - start;
+        if (cache != null) {
+            cache.instrument(this, classFile, outputFile.toPath(), classStats);
+        } else {
+            byte[] instrumented = instrument(classFile, classStats);
+            start = System.nanoTime();
+            // The output may be a link to an entry of a cache used before, so never write through it
+            Files.deleteIfExists(outputFile.toPath());
+            Files.write(outputFile.toPath(), instrumented);
+            classStats.writeNanos = System.nanoTime() - start;
+        }
+        classInstrumented(classStats);
+    }
+
+    /**
+     * Checks all the classes of the package, from its directory or jar file,
+     * adding every violation to the report instead of stopping at the first
+     * one. Nothing is instrumented nor written.
+     */
+    void validate(Path input, ViolationReport report) throws IOException {
+        log.debug("Instrumenter::validate " + packageName + " " + input);
+        forEachClass(input, classFile -> validate(classFile, report));
+    }
+
+    /**
+     * Adds all the methods of the classes of the package, from its directory
+     * or jar file, to the cost report. Nothing is written.
+     */
+    void analyzeCosts(Path input, CostReport costs) throws IOException {
+        log.debug("Instrumenter::analyzeCosts " + packageName + " " + input);
+        forEachClass(input, classFile -> analyzeCosts(classFile, costs));
+    }
+
+    /**
+     * Reads all the class files of a directory, sorted by path, or of a jar
+     * file.
+     */
+    private static void forEachClass(Path input, Consumer<byte[]> action) throws IOException {
+        if (Files.isDirectory(input)) {
+            List<Path> files;
+            try (Stream<Path> stream = Files.walk(input)) {
+                files = stream.filter(file -> file.toString().endsWith(".class")).sorted()
+                        .collect(Collectors.toList());
+            }
+            for (Path file : files) action.accept(Files.readAllBytes(file));
+            return;
+        }
+        try (ZipFile jar = new ZipFile(input.toFile())) {
+            Enumeration<? extends ZipEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!isClassEntry(entry)) continue;
+                try (InputStream in = jar.getInputStream(entry)) {
+                    action.accept(in.readAllBytes());
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks a class file, adding every violation to the report. Only the
+     * checks run: neither the code nor the frames are transformed.
+     */
+    void validate(byte[] classFile, ViolationReport report) {
+        ClassReader cr = new ClassReader(classFile);
+        cr.accept(new ClassInstrumenter(this, report), ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    }
+
+    /**
+     * Adds the methods of a class file to the cost report. The class is
+     * instrumented as usual, counting by blocks, but the result is discarded.
+     */
+    void analyzeCosts(byte[] classFile, CostReport costs) {
+        ClassReader cr = new ClassReader(classFile);
+        ClassInstrumenter cv = new ClassInstrumenter(this, new ClassWriter(0), costs);
+        cr.accept(cv, options.debugMode == DebugMode.STRIP ? ClassReader.SKIP_DEBUG : 0);
+    }
+
+    /**
+     * Instruments a class file.
+     *
+     * @return The instrumented class file.
+     */
+    byte[] instrument(byte[] classFile) {
+        return instrument(classFile, hierarchy, null, null);
+    }
+
+    /**
+     * Instruments a class file, filling the statistics of its transformation.
+     * The statistics are not added, since the class isn't done yet.
+     *
+     * @return The instrumented class file.
+     */
+    byte[] instrument(byte[] classFile, InstrumentationStats.ClassStats classStats) {
+        return instrument(classFile, hierarchy, null, classStats);
+    }
+
+    /**
+     * Instruments a class file, finding the classes it uses (to compute the
+     * stack map frames) in the given hierarchy, or loading them with the given
+     * class loader, instead of the ones of the instrumenter. The class is done
+     * once instrumented, so its statistics are added.
+     *
+     * @return The instrumented class file.
+     */
+    byte[] instrument(byte[] classFile, ClassHierarchy hierarchy, ClassLoader loader) {
+        InstrumentationStats.ClassStats classStats = new InstrumentationStats.ClassStats();
+        byte[] instrumented = instrument(classFile, hierarchy, loader, classStats);
+        classInstrumented(classStats);
+        return instrumented;
+    }
+
+    private byte[] instrument(byte[] classFile, ClassHierarchy hierarchy, ClassLoader loader,
+                              InstrumentationStats.ClassStats classStats) {
+        long start = System.nanoTime();
         // Setup reader, writer and visitor ASM classes
-        FileInputStream fis = new FileInputStream(file);
-        ClassReader cr = new ClassReader(fis);
-        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
-        ClassVisitor cv = new ClassInstrumenter(cw);
+        ClassReader cr = new ClassReader(classFile);
+        ClassWriter cw;
+        int parsingOptions = 0;
+        switch (options.frameMode) {
+            case KEEP:
+                cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+                // Expanded frames can be completed with the local counter
+                if (options.countingMode == CountingMode.LOCAL) parsingOptions = ClassReader.EXPAND_FRAMES;
+                break;
+            case HIERARCHY:
+                // The class may not be in the class path yet (e.g., when loading it)
+                hierarchy.add(cr);
+                cw = new HierarchyClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES, hierarchy);
+                break;
+            default:
+                cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES) {
+                    @Override
+                    protected ClassLoader getClassLoader() {
+                        return loader != null ? loader : super.getClassLoader();
+                    }
+                };
+        }
+        if (options.debugMode == DebugMode.STRIP) parsingOptions |= ClassReader.SKIP_DEBUG;
+        ClassInstrumenter cv = new ClassInstrumenter(this, cw);
         // Visit and instrument
-        cr.accept(cv, 0);
-        // Write instrumented file
-        byte[] b = cw.toByteArray();
-        FileOutputStream fos = new FileOutputStream(outputPath);
-        fos.write(b);
-        fos.close();
+        cr.accept(cv, parsingOptions);
+        byte[] instrumented;
+        try {
+            instrumented = cw.toByteArray();
+        } catch (MethodTooLargeException e) {
+            String method = e.getMethodName() + e.getDescriptor();
+            throw new ViolationException("Method `" + method + "` of class `" + e.getClassName() +
+                    "` is too large once instrumented (" + e.getCodeSize() + " bytes of code, the limit is 65535 " +
+                    "bytes)", method);
+        }
+        checkSizes(cr, instrumented);
+        if (classStats != null) {
+            classStats.className = cr.getClassName();
+            classStats.methods = cv.methods;
+            classStats.counterSites = cv.counterSites;
+            classStats.bytesBefore = classFile.length;
+            classStats.bytesAfter = instrumented.length;
+            classStats.transformNanos += System.nanoTime() - start;
+        }
+        return instrumented;
+    }
+
+    /**
+     * Adds the code sizes of the methods of a class to the size report, and
+     * checks them against the size budget.
+     */
+    void checkSizes(ClassReader original, byte[] instrumented) {
+        checkSizes(original.getClassName(), SizeReport.readCodeSizes(original),
+                SizeReport.readCodeSizes(new ClassReader(instrumented)));
+    }
+
+    /**
+     * Adds the code sizes of the methods of a class, already known (e.g.,
+     * from the cache), to the size report, and checks them against the size
+     * budget.
+     */
+    void checkSizes(String className, Map<String, Integer> originalSizes, Map<String, Integer> instrumentedSizes) {
+        sizes.add(className, originalSizes, instrumentedSizes);
+        if (options.sizeBudget <= 0) return;
+        for (Map.Entry<String, Integer> entry : instrumentedSizes.entrySet()) {
+            Integer originalSize = originalSizes.get(entry.getKey());
+            if (originalSize == null || entry.getValue() <= options.sizeBudget) continue;
+            String message = "Method `" + entry.getKey() + "` of class `" + className + "` takes " +
+                    entry.getValue() + " bytes of code once instrumented (" + originalSize + " before), over the " +
+                    "size budget of " + options.sizeBudget + " bytes";
+            if (options.failOverBudget) throw new ViolationException(message, entry.getKey());
+            log.warn(message);
+        }
+    }
+
+    /**
+     * Adds the rows of the site table of a class (see {@link SiteTable}).
+     */
+    void addSites(String className, String rows) {
+        if (!rows.isEmpty()) siteTable.put(className, rows);
+    }
+
+    /**
+     * Returns the rows of the site table of a class, or an empty string if it
+     * has no sites.
+     */
+    String getSites(String className) {
+        return siteTable.getOrDefault(className, "");
+    }
+
+    /**
+     * Writes the site table of all the classes instrumented during this run.
+     */
+    void writeSiteTable(Path file) throws IOException {
+        log.debug("Instrumenter::writeSiteTable " + file + " " + siteTable.size());
+        try (Writer writer = Files.newBufferedWriter(file)) {
+            writer.write(SiteTable.HEADER);
+            for (String rows : siteTable.values()) writer.write(rows);
+        }
     }
 
-    static int getMethodBytecodeCost(String method) {
-        Integer ans = methodBytecodeCosts.get(method);
+    /**
+     * Returns the dynamic cost of a method, or of the allocation of arrays
+     * (given by {@link DynamicCost#ARRAY_OWNER}), or {@code null} if it has
+     * none.
+     */
+    DynamicCost getDynamicCost(String owner, String name, String descriptor) {
+        return rules.index.getDynamicCost(owner, name, descriptor);
+    }
+
+    int getMethodBytecodeCost(String owner, String name) {
+        Integer ans = rules.index.getMethodBytecodeCost(owner, name);
         if (ans == null) return 1;
         return ans;
     }
 
-    static void checkValidClass(String className) {
+    void checkValidClass(String className) {
         if (className == null) return;
+        boolean checked = validClasses.contains(className);
+        stats.countCheck(checked);
+        if (checked) return;
+        checkValidClass(className, 0, className.length());
+        validClasses.add(className);
+    }
+
+    /**
+     * Checks the class name between {@code start} (inclusive) and {@code end}
+     * (exclusive), without allocating unless it is prohibited.
+     */
+    private void checkValidClass(String name, int start, int end) {
         // Check the library. Allow from own package and from allowed libraries
-        int indexBetweenLibAndClass = className.lastIndexOf('/');
-        if (indexBetweenLibAndClass != -1) {
-            String library = className.substring(0, indexBetweenLibAndClass + 1);
-            if (library.startsWith(packageName + '/')) return;
-            if (!allowedLibraries.contains(library)) {
-                log.error("Library `" + library + "` is prohibited (used in `" + className + "`)");
-                System.exit(1);
+        int indexBetweenLibAndClass = name.lastIndexOf('/', end - 1);
+        if (indexBetweenLibAndClass >= start) {
+            if (isOwnPackage(name, start, indexBetweenLibAndClass)) return;
+            if (!rules.index.isAllowedLibrary(name, start, indexBetweenLibAndClass + 1)) {
+                String library = name.substring(start, indexBetweenLibAndClass + 1);
+                String className = name.substring(start, end);
+                throw new ViolationException("Library `" + library + "` is prohibited (used in `" + className + "`)",
+                        className);
             }
         }
         // Check the class
-        if (disallowedClasses.contains(className)) {
-            log.error("Class `" + className + "` is prohibited");
-            System.exit(1);
+        if (rules.index.isDisallowedClass(name, start, end)) {
+            String className = name.substring(start, end);
+            throw new ViolationException("Class `" + className + "` is prohibited", className);
+        }
+    }
+
+    /**
+     * Whether the library ending at {@code indexBetweenLibAndClass} is the
+     * package or one of its subpackages.
+     */
+    private boolean isOwnPackage(String name, int start, int indexBetweenLibAndClass) {
+        int length = packageName.length();
+        return indexBetweenLibAndClass >= start + length && name.charAt(start + length) == '/' &&
+                name.startsWith(packageName, start);
+    }
+
+    /**
+     * Checks that a field or method doesn't use the names reserved for the
+     * members added by the instrumenter.
+     */
+    void checkNotReserved(String name) {
+        if (name.startsWith(RESERVED_PREFIX)) {
+            throw new ViolationException("Names starting with `" + RESERVED_PREFIX + "` are reserved (used in `" +
+                    name + "`)", name);
         }
     }
 
-    static void checkValidClasses(String[] classNames) {
+    void checkValidClasses(String[] classNames) {
         if (classNames == null) return;
         for (String className : classNames) checkValidClass(className);
     }
 
-    static void checkValidMethod(String owner, String name) {
-        // Get disallowed methods from the class `owner`
-        List<String> methods = disallowedMethods.get(owner);
-        if (methods == null) return;
+    void checkValidMethod(String owner, String name) {
         // Check if method `name` from class `owner` is valid
-        if (methods.contains(name)) {
-            log.error("Method `" + name + "` from `" + owner + "` is prohibited");
-            System.exit(1);
+        if (rules.index.isDisallowedMethod(owner, name)) {
+            throw new ViolationException("Method `" + name + "` from `" + owner + "` is prohibited",
+                    owner + "." + name);
         }
     }
 
-    static void checkValidDescriptor(String descriptor) {
+    void checkValidDescriptor(String descriptor) {
         if (descriptor == null) return;
         if (descriptor.isEmpty()) return;
-        // Method descriptors have, first, the parameters descriptors between parenthesis, then the return descriptor
-        if (descriptor.charAt(0) == '(') {
-            int indexEndParameters = descriptor.lastIndexOf(')');
-            // Recursive call to check parameters
-            checkValidDescriptor(descriptor.substring(1, indexEndParameters));
-            // Recursive call to check return
-            checkValidDescriptor(descriptor.substring(indexEndParameters + 1));
-        }
-        // Validate descriptor
+        boolean checked = validDescriptors.contains(descriptor);
+        stats.countCheck(checked);
+        if (checked) return;
+        // Method descriptors have, first, the parameters descriptors between parenthesis, then the return
+        // descriptor, so they can be checked as a whole
         for (int i = 0; i < descriptor.length(); i++) {
             // L indicates a class name comes next, ended by semicolon (other characters indicate basic types or array)
             // Check only the classes. Ignore the basic types
             if (descriptor.charAt(i) == 'L') {
                 int indexEndClass = descriptor.indexOf(';', i);
-                checkValidClass(descriptor.substring(i + 1, indexEndClass));
+                checkValidClass(descriptor, i + 1, indexEndClass);
                 i = indexEndClass;
             }
         }
+        validDescriptors.add(descriptor);
     }
 
-    static void checkValidSignature(String signature) {
+    void checkValidSignature(String signature) {
         if (signature == null) return;
         if (signature.isEmpty()) return;
+        boolean checked = validSignatures.contains(signature);
+        stats.countCheck(checked);
+        if (checked) return;
         SignatureReader reader = new SignatureReader(signature);
-        reader.accept(new SignatureInstrumenter());
+        reader.accept(new SignatureInstrumenter(this));
+        validSignatures.add(signature);
+    }
+
+    /**
+     * Entry of a jar being instrumented, with the statistics of its class, if
+     * it is one.
+     */
+    private static final class PendingEntry {
+        final ZipEntry entry;
+        final Future<byte[]> bytes;
+        final InstrumentationStats.ClassStats stats;
+
+        PendingEntry(ZipEntry entry, Future<byte[]> bytes, InstrumentationStats.ClassStats stats) {
+            this.entry = entry;
+            this.bytes = bytes;
+            this.stats = stats;
+        }
+    }
+
+    /**
+     * Input stream to read a (memory-mapped) byte buffer.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
     }
 }
@@ -0,0 +1,232 @@
+package instrumenter;
+
+import java.util.*;
+
+/**
+ * Class with static methods to read and write JSON.
+ * <p>
+ * Objects are read as (ordered) maps, arrays as lists, numbers as doubles, and
+ * written back the same way, also accepting any other number type. This is
+ * enough for the messages and reports of the instrumenter, without depending
+ * on any other library.
+ */
+final class Json {
+    private final String text;
+    private int i;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    static Object parse(String text) {
+        Json json = new Json(text);
+        Object value = json.readValue();
+        json.skipWhitespace();
+        if (json.i != text.length()) throw json.error("Unexpected content");
+        return value;
+    }
+
+    static String write(Object value) {
+        StringBuilder sb = new StringBuilder();
+        write(value, sb);
+        return sb.toString();
+    }
+
+    static void write(Object value, StringBuilder sb) {
+        if (value == null) {
+            sb.append("null");
+        } else if (value instanceof String) {
+            writeString((String) value, sb);
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) sb.append("null");
+            else if (d == Math.rint(d) && Math.abs(d) < 1e15) sb.append((long) d);
+            else sb.append(d);
+        } else if (value instanceof Number || value instanceof Boolean) {
+            sb.append(value);
+        } else if (value instanceof Map) {
+            sb.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) sb.append(',');
+                first = false;
+                writeString(String.valueOf(entry.getKey()), sb);
+                sb.append(':');
+                write(entry.getValue(), sb);
+            }
+            sb.append('}');
+        } else if (value instanceof Collection) {
+            sb.append('[');
+            boolean first = true;
+            for (Object item : (Collection<?>) value) {
+                if (!first) sb.append(',');
+                first = false;
+                write(item, sb);
+            }
+            sb.append(']');
+        } else {
+            writeString(value.toString(), sb);
+        }
+    }
+
+    private static void writeString(String s, StringBuilder sb) {
+        sb.append('"');
+        for (int j = 0; j < s.length(); j++) {
+            char c = s.charAt(j);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    private Object readValue() {
+        skipWhitespace();
+        if (i >= text.length()) throw error("Unexpected end");
+        char c = text.charAt(i);
+        switch (c) {
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+                return readString();
+            case 't':
+                return readLiteral("true", Boolean.TRUE);
+            case 'f':
+                return readLiteral("false", Boolean.FALSE);
+            case 'n':
+                return readLiteral("null", null);
+            default:
+                return readNumber();
+        }
+    }
+
+    private Map<String, Object> readObject() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        i++;
+        skipWhitespace();
+        if (peek() == '}') {
+            i++;
+            return map;
+        }
+        while (true) {
+            skipWhitespace();
+            if (peek() != '"') throw error("Expected a key");
+            String key = readString();
+            skipWhitespace();
+            if (peek() != ':') throw error("Expected `:`");
+            i++;
+            map.put(key, readValue());
+            skipWhitespace();
+            char c = peek();
+            i++;
+            if (c == '}') return map;
+            if (c != ',') throw error("Expected `,` or `}`");
+        }
+    }
+
+    private List<Object> readArray() {
+        List<Object> list = new ArrayList<>();
+        i++;
+        skipWhitespace();
+        if (peek() == ']') {
+            i++;
+            return list;
+        }
+        while (true) {
+            list.add(readValue());
+            skipWhitespace();
+            char c = peek();
+            i++;
+            if (c == ']') return list;
+            if (c != ',') throw error("Expected `,` or `]`");
+        }
+    }
+
+    private String readString() {
+        StringBuilder sb = new StringBuilder();
+        i++;
+        while (true) {
+            char c = peek();
+            i++;
+            if (c == '"') return sb.toString();
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            char e = peek();
+            i++;
+            switch (e) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 > text.length()) throw error("Unexpected end");
+                    sb.append((char) Integer.parseInt(text.substring(i, i + 4), 16));
+                    i += 4;
+                    break;
+                default:
+                    sb.append(e);
+            }
+        }
+    }
+
+    private Object readLiteral(String literal, Object value) {
+        if (!text.startsWith(literal, i)) throw error("Unexpected token");
+        i += literal.length();
+        return value;
+    }
+
+    private Double readNumber() {
+        int start = i;
+        while (i < text.length() && "+-0123456789.eE".indexOf(text.charAt(i)) != -1) i++;
+        try {
+            return Double.valueOf(text.substring(start, i));
+        } catch (NumberFormatException e) {
+            throw error("Invalid number");
+        }
+    }
+
+    private char peek() {
+        if (i >= text.length()) throw error("Unexpected end");
+        return text.charAt(i);
+    }
+
+    private void skipWhitespace() {
+        while (i < text.length() && Character.isWhitespace(text.charAt(i))) i++;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + i + " of JSON `" + text + "`");
+    }
+}
@@ -6,17 +6,46 @@ import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
 import java.io.*;
-import java.util.*;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Steps:
  * 1. Parse command line arguments.
- * 2. Load resources from the instrumenter and the engine:
- * - Methods in bytecodes costs
+ * 2. Load the profile of the engine, either the default one of the engine
+ * (from the resources of the instrumenter) or a profile file, as text or
+ * compiled (see {@link EngineProfile}):
+ * - Counter of the bytecodes
+ * - Methods in bytecodes costs, static and dynamic
  * - Allowed libraries
  * - Disallowed classes
  * - Disallowed methods
- * 3. Instrument the specified package.
+ * - Static fields allowed
+ * 3. Instrument the specified package, counting the bytecodes per instruction
+ * or per basic block, either directly or through a local variable (charging
+ * the counted loops once before entering them, optionally), and computing the
+ * stack map frames with the class hierarchy of the package, the engine API
+ * and the JDK, or keeping the original ones. The debug attributes are kept,
+ * or dropped (but the line numbers, optionally). The files of the package
+ * are instrumented concurrently and, optionally, taken from a cache when they
+ * have not changed. The package is read either from the build directory or
+ * from a jar file. Optionally, to profile the package, the executions of each
+ * basic block are counted too, and the table of the blocks is written to a
+ * file (see {@link SiteTable}).
+ * <p>
+ * With {@code validate-only}, the package is only checked, and nothing is
+ * written. With {@code compile-engine}, the profile of the engine is only
+ * compiled, so that it can be loaded without parsing it.
+ * <p>
+ * Alternatively, in server mode, the resources are loaded once and the
+ * instrumentation jobs are received through stdin or a Unix-domain socket (see
+ * {@link InstrumentationServer}), in batch mode, the packages of a manifest
+ * are instrumented together (see {@link InstrumentationBatch}), or the package
+ * is instrumented at load time by a Java agent (see {@link Agent}).
  */
 public class Main {
     private static final Logger log = LogManager.getRootLogger();
@@ -26,103 +55,247 @@ public class Main {
         Options options = buildArgumentOptions();
         CommandLineParser parser = new DefaultParser();
         CommandLine cmdLine = parser.parse(options, args);
+        String verboseLevel = cmdLine.getOptionValue("verbose", "INFO").trim();
+        int parallelism = cmdLine.hasOption("threads") ?
+                Integer.parseInt(cmdLine.getOptionValue("threads").trim()) :
+                Runtime.getRuntime().availableProcessors();
+
+        // Set logger level
+        Logger.getRootLogger().setLevel(Level.toLevel(verboseLevel));
+
+        // Compile the profile of the engine instead of instrumenting a package
+        if (cmdLine.hasOption("compile-engine")) {
+            if (!cmdLine.hasOption("engine")) {
+                log.error("Missing command line argument `engine`");
+                System.exit(1);
+            }
+            try {
+                EngineProfile.load(cmdLine.getOptionValue("engine").trim())
+                        .write(Paths.get(cmdLine.getOptionValue("compile-engine").trim()));
+            } catch (FileNotFoundException | IllegalArgumentException e) {
+                log.error(e.getMessage());
+                System.exit(1);
+            }
+            log.info("Engine profile compiled successfully!");
+            return;
+        }
+
+        // Serve jobs instead of instrumenting a single package
+        if (cmdLine.hasOption("socket")) {
+            new InstrumentationServer(parallelism).serve(Paths.get(cmdLine.getOptionValue("socket").trim()));
+            return;
+        }
+        if (cmdLine.hasOption("server")) {
+            // The standard output is used by the protocol, and it is also where the logger writes
+            Logger.getRootLogger().setLevel(Level.OFF);
+            new InstrumentationServer(parallelism).serve(System.in, System.out);
+            return;
+        }
+
+        // Instrument the packages of a manifest instead of a single package
+        if (cmdLine.hasOption("batch")) {
+            runBatch(cmdLine, parallelism);
+            return;
+        }
+
         if (!cmdLine.hasOption("package")) {
             log.error("Missing command line argument `package`");
             System.exit(1);
         }
 
-        String engine = cmdLine.getOptionValue("engine").trim();
-        String buildPath = cmdLine.getOptionValue("build").trim();
-        String packagePath = cmdLine.getOptionValue("package").trim();
-        String verboseLevel = cmdLine.getOptionValue("verbose", "INFO").trim();
-
-        // Set logger level
-        Logger.getRootLogger().setLevel(Level.toLevel(verboseLevel));
+        if (!cmdLine.hasOption("build") && !cmdLine.hasOption("jar")) {
+            log.error("Missing command line argument `build` or `jar`");
+            System.exit(1);
+        }
 
-        // Load resources
-        Map<String, Integer> methodBytecodeCosts = loadMethodBytecodeCosts();
-        Set<String> allowedLibraries = loadAllowedLibraries();
-        allowedLibraries.add(engine + "/api/");
-        Set<String> disallowedClasses = loadDisallowedClasses();
-        Map<String, List<String>> disallowedMethods = loadDisallowedMethods();
-
-        // Instrument
-        Instrumenter.instrumentPackage(
-                packagePath,
-                buildPath + "/" + packagePath,
-                buildPath + "/instrumented/" + packagePath,
-                methodBytecodeCosts, allowedLibraries, disallowedClasses, disallowedMethods
+        InstrumentationJob job = new InstrumentationJob(
+                cmdLine.getOptionValue("engine").trim(),
+                cmdLine.getOptionValue("package").trim()
         );
+        job.buildPath = cmdLine.getOptionValue("build", "").trim();
+        job.jarPath = cmdLine.getOptionValue("jar", "").trim();
+        job.outputPath = cmdLine.getOptionValue("output", "").trim();
+        job.apiJarPath = cmdLine.getOptionValue("api-jar", "").trim();
+        job.profilePath = cmdLine.getOptionValue("profile", "").trim();
+        job.sizeReportPath = cmdLine.getOptionValue("size-report", "").trim();
+        job.statsPath = cmdLine.getOptionValue("stats", "").trim();
+        job.violationReportPath = cmdLine.getOptionValue("violation-report", "").trim();
+        job.costReportPath = cmdLine.getOptionValue("cost-report", "").trim();
+        job.costBudget = Long.parseLong(cmdLine.getOptionValue("cost-budget", "0").trim());
+        setOptions(job, cmdLine);
+        job.parallelism = parallelism;
+
+        try {
+            // Load resources
+            RuleSet rules = loadRules(job.engine);
 
-        log.info("Instrumentation completed successfully!");
+            // Instrument
+            job.run(rules);
+            if (job.stats != null) log.info("Instrumented " + job.stats);
+            if (job.sizes != null) log.info("Method sizes: " + job.sizes);
+            if (job.cache != null) {
+                log.info("Instrumentation cache: " + job.cache.getHits() + " hits, " + job.cache.getMisses() +
+                        " misses");
+            }
+        } catch (ViolationException | FileNotFoundException | IllegalArgumentException e) {
+            log.error(e.getMessage());
+            System.exit(1);
+        } catch (TypeNotPresentException e) {
+            log.error("Class `" + e.typeName() + "` not found to compute the frames. Its jar must be given with " +
+                    "`api-jar`, or the frames kept with `frames keep`");
+            System.exit(1);
+        }
+
+        log.info(job.validateOnly ? "Validation completed successfully!" : "Instrumentation completed successfully!");
+    }
+
+    /**
+     * Sets the options of a job that can be shared by several packages.
+     */
+    private static void setOptions(InstrumentationJob job, CommandLine cmdLine) {
+        job.cachePath = cmdLine.getOptionValue("cache", "").trim();
+        job.validateOnly = cmdLine.hasOption("validate-only");
+        job.options.countingMode =
+                CountingMode.valueOf(cmdLine.getOptionValue("counting", "instruction").trim().toUpperCase());
+        job.options.frameMode =
+                FrameMode.valueOf(cmdLine.getOptionValue("frames", "hierarchy").trim().toUpperCase());
+        job.options.debugMode =
+                DebugMode.valueOf(cmdLine.getOptionValue("debug", "keep").trim().toUpperCase());
+        job.options.chargeStubs = cmdLine.hasOption("charge-stubs");
+        job.options.hoistLoops = cmdLine.hasOption("hoist-loops");
+        job.options.inlineBudget = cmdLine.hasOption("inline-budget");
+        job.options.sizeBudget = Integer.parseInt(cmdLine.getOptionValue("size-budget", "8000").trim());
+        job.options.failOverBudget = cmdLine.hasOption("size-budget-fail");
+    }
+
+    /**
+     * Instruments the packages of a manifest (see
+     * {@link InstrumentationBatch}), with the options of the command line,
+     * reporting the result of each package.
+     */
+    private static void runBatch(CommandLine cmdLine, int parallelism) throws IOException {
+        List<InstrumentationJob> jobs;
+        try {
+            jobs = InstrumentationBatch.readManifest(Paths.get(cmdLine.getOptionValue("batch").trim()));
+        } catch (NoSuchFileException | IllegalArgumentException e) {
+            log.error(e instanceof NoSuchFileException ? "Manifest `" + e.getMessage() + "` not found" :
+                    e.getMessage());
+            System.exit(1);
+            return;
+        }
+        for (InstrumentationJob job : jobs) setOptions(job, cmdLine);
+        List<Path> apiJars = new ArrayList<>();
+        for (String apiJar : cmdLine.getOptionValue("api-jar", "").split(File.pathSeparator)) {
+            if (!apiJar.isBlank()) apiJars.add(Paths.get(apiJar.trim()));
+        }
+        int failures = 0;
+        try (InstrumentationBatch batch = new InstrumentationBatch(parallelism, apiJars)) {
+            for (Map<String, Object> result : batch.run(jobs)) {
+                String summary = "Package `" + result.get("id") + "`: " + result.get("status") + " (" +
+                        result.get("millis") + " ms)";
+                if (result.get("status").equals("ok")) {
+                    log.info(summary);
+                } else {
+                    failures++;
+                    log.error(summary + ": " + result.get("message"));
+                }
+            }
+        }
+        if (failures > 0) {
+            log.error(failures + " of " + jobs.size() + " packages failed");
+            System.exit(1);
+        }
+        log.info("Batch of " + jobs.size() + " packages completed successfully!");
+    }
+
+    /**
+     * Loads the rules of the engine, given by name or by a profile file (see
+     * {@link EngineProfile}).
+     */
+    static RuleSet loadRules(String engine) throws IOException {
+        return new RuleSet(EngineProfile.load(engine));
     }
 
     private static Options buildArgumentOptions() {
         Options options = new Options();
-        Option engineOpt = new Option("e", "engine", true, "Engine");
+        Option engineOpt = new Option("e", "engine", true, "Engine, or engine profile file (text or compiled)");
         options.addOption(engineOpt);
         Option buildOpt = new Option("b", "build", true, "Build path");
         options.addOption(buildOpt);
+        Option jarOpt = new Option("j", "jar", true, "Jar file (instead of the build path)");
+        options.addOption(jarOpt);
+        Option outputOpt = new Option("o", "output", true,
+                "Output directory, or jar file (default: `instrumented` next to the input)");
+        options.addOption(outputOpt);
         Option packageOpt = new Option("p", "package", true, "Package");
         options.addOption(packageOpt);
         Option verboseOpt = new Option("v", "verbose", true, "Verbose level (error, warn, info, debug)");
         options.addOption(verboseOpt);
+        Option countingOpt = new Option("c", "counting", true, "Bytecodes counting (instruction, block, local)");
+        options.addOption(countingOpt);
+        Option framesOpt = new Option(null, "frames", true,
+                "Stack map frames (compute, hierarchy, keep) (default: hierarchy)");
+        options.addOption(framesOpt);
+        Option debugOpt = new Option(null, "debug", true,
+                "Debug attributes kept (keep, lines, strip) (default: keep). Unless kept, only the labels that are " +
+                        "jump targets are charged");
+        options.addOption(debugOpt);
+        Option apiJarOpt = new Option(null, "api-jar", true,
+                "Jar files of the engine API, to compute the frames (separated by the path separator)");
+        options.addOption(apiJarOpt);
+        Option profileOpt = new Option(null, "profile", true,
+                "Site table file. Counts the executions of each basic block (requires counting block or local)");
+        options.addOption(profileOpt);
+        Option chargeStubsOpt = new Option(null, "charge-stubs", false,
+                "Share the bytecodes counters of each class through static methods, to keep methods small");
+        options.addOption(chargeStubsOpt);
+        Option batchOpt = new Option(null, "batch", true,
+                "Manifest of packages to instrument, one `<engine> <build path or jar> <package> [<output>]` per " +
+                        "line, with the rest of the options (but the reports)");
+        options.addOption(batchOpt);
+        Option hoistLoopsOpt = new Option(null, "hoist-loops", false,
+                "Charge the counted loops once before entering them (requires counting block or local)");
+        options.addOption(hoistLoopsOpt);
+        Option inlineBudgetOpt = new Option(null, "inline-budget", false,
+                "Check the budget of the engine inline, invoking it only when exhausted (requires a `budget` in " +
+                        "the engine profile, and computing the frames)");
+        options.addOption(inlineBudgetOpt);
+        Option sizeBudgetOpt = new Option(null, "size-budget", true,
+                "Code size of an instrumented method over which it is reported (default: 8000, 0 to disable)");
+        options.addOption(sizeBudgetOpt);
+        Option sizeBudgetFailOpt = new Option(null, "size-budget-fail", false,
+                "Fail, instead of warning, when a method is over the size budget");
+        options.addOption(sizeBudgetFailOpt);
+        Option sizeReportOpt = new Option(null, "size-report", true,
+                "Size report file, with the code size of each method before and after the instrumentation");
+        options.addOption(sizeReportOpt);
+        Option statsOpt = new Option(null, "stats", true,
+                "Statistics file (JSON), with the classes, methods, counters, sizes and times of the run");
+        options.addOption(statsOpt);
+        Option violationReportOpt = new Option(null, "violation-report", true,
+                "Violation report file (JSON). Checks the whole package first, reporting all the violations");
+        options.addOption(violationReportOpt);
+        Option costReportOpt = new Option(null, "cost-report", true,
+                "Cost report file, with the worst-case bytecodes cost of each method, estimated statically");
+        options.addOption(costReportOpt);
+        Option costBudgetOpt = new Option(null, "cost-budget", true,
+                "Cost of a method without repeating any loop over which it is flagged in the cost report " +
+                        "(default: 0, disabled)");
+        options.addOption(costBudgetOpt);
+        Option validateOnlyOpt = new Option(null, "validate-only", false,
+                "Only check the package, reporting all the violations, without instrumenting it");
+        options.addOption(validateOnlyOpt);
+        Option compileEngineOpt = new Option(null, "compile-engine", true,
+                "Compiled engine profile file. Only compiles the profile of the engine");
+        options.addOption(compileEngineOpt);
+        Option threadsOpt = new Option("t", "threads", true, "Number of threads (default: available processors)");
+        options.addOption(threadsOpt);
+        Option cacheOpt = new Option(null, "cache", true, "Instrumentation cache directory (disabled by default)");
+        options.addOption(cacheOpt);
+        Option serverOpt = new Option(null, "server", false, "Serve instrumentation jobs through stdin/stdout");
+        options.addOption(serverOpt);
+        Option socketOpt = new Option(null, "socket", true, "Serve instrumentation jobs through a Unix-domain socket");
+        options.addOption(socketOpt);
         return options;
     }
-
-    private static Map<String, Integer> loadMethodBytecodeCosts() throws IOException {
-        BufferedReader reader = getBufferedReader("resources/MethodBytecodeCosts.txt");
-        Map<String, Integer> methodBytecodeCosts = new HashMap<>();
-        String newLine;
-        while ((newLine = reader.readLine()) != null) {
-            String[] tokens = newLine.split("\\s+");
-            methodBytecodeCosts.put(tokens[0], Integer.parseInt(tokens[1]));
-        }
-        reader.close();
-        return methodBytecodeCosts;
-    }
-
-    private static Set<String> loadAllowedLibraries() throws IOException {
-        BufferedReader reader = getBufferedReader("resources/AllowedLibraries.txt");
-        Set<String> allowedLibraries = new HashSet<>();
-        String newLine;
-        while ((newLine = reader.readLine()) != null) {
-            allowedLibraries.add(newLine + "/");
-        }
-        reader.close();
-        return allowedLibraries;
-    }
-
-    private static Set<String> loadDisallowedClasses() throws IOException {
-        BufferedReader reader = getBufferedReader("resources/DisallowedClasses.txt");
-        Set<String> disallowedClasses = new HashSet<>();
-        String newLine;
-        while ((newLine = reader.readLine()) != null) {
-            disallowedClasses.add(newLine);
-        }
-        reader.close();
-        return disallowedClasses;
-    }
-
-    private static Map<String, List<String>> loadDisallowedMethods() throws IOException {
-        BufferedReader reader = getBufferedReader("resources/DisallowedMethods.txt");
-        Map<String, List<String>> disallowedMethods = new HashMap<>();
-        String newLine;
-        while ((newLine = reader.readLine()) != null) {
-            String[] tokens = newLine.split("\\s+");
-            List<String> methodNames = disallowedMethods.computeIfAbsent(tokens[0], k -> new ArrayList<>());
-            methodNames.add(tokens[1]);
-        }
-        reader.close();
-        return disallowedMethods;
-    }
-
-    private static BufferedReader getBufferedReader(String filePath) {
-        InputStream in = Main.class.getClassLoader().getResourceAsStream(filePath);
-        if (in == null) {
-            log.error("Unable to find file `" + filePath + "`");
-            System.exit(1);
-        }
-        return new BufferedReader(new InputStreamReader(in));
-    }
 }
@@ -0,0 +1,480 @@
+package instrumenter;
+
+import org.objectweb.asm.*;
+
+import java.util.*;
+
+/**
+ * Class to record the code of a method before writing it.
+ * <p>
+ * Instead of writing the instructions as they are visited, they are stored as
+ * {@link CodeNode}s together with the bytecodes charged after each of them.
+ * Once the whole code has been recorded (i.e., when {@code visitMaxs} is
+ * called), the control flow graph of the method is built and the code is
+ * replayed into the method writer, injecting a single bytecodes counter
+ * increment at the beginning of each basic block.
+ * <p>
+ * When counting in a local variable, the block increments are {@code IINC}s
+ * of a new local variable of the method, which is flushed into the bytecodes
+ * count before the instructions where the engine must be able to stop the
+ * execution: backward jumps (loops), method invocations (recursion), returns,
+ * throws and at the beginning of exception handlers. Exceptions thrown out of
+ * the method go through a handler after the code (after the ones of the
+ * method), which flushes the counter and rethrows them.
+ * <p>
+ * When the original stack map frames are kept, the counters are placed after
+ * the frames, and a frame is never left without the local variable.
+ * <p>
+ * When hoisting loops, the blocks of the {@link CountedLoop}s aren't counted:
+ * each loop is charged once before entering it, and the bytecodes not
+ * executed are given back when leaving it early, on the way out. Exits through
+ * jumps go through a refund after the code, which jumps to the original
+ * target, and exceptions thrown out of the method through a handler after the
+ * code, which rethrows them.
+ * <p>
+ * Unless the debug attributes are kept, only the labels that are targets of
+ * jumps, switches or exception handlers are charged.
+ * <p>
+ * When profiling, each block with a cost is also a site of the
+ * {@link SiteTable} of the class, and its counter is followed by the increment
+ * of its slot of the histogram.
+ * <p>
+ * Everything visited outside the code (annotations, parameters...) and the
+ * try-catch blocks are forwarded directly to the method writer.
+ */
+class MethodBuffer extends MethodVisitor {
+    private final BytecodeCounter bytecodeCounter;
+    private final CountingMode countingMode;
+    private final boolean keepFrames, hoistLoops, targetsOnly;
+    private final SiteTable sites;
+    private final ChargeStubs stubs;
+    private final String method;
+    private final List<CodeNode> nodes = new ArrayList<>();
+    private final List<Label[]> tryCatchBlocks = new ArrayList<>();
+    /**
+     * Counters injected, for the statistics.
+     */
+    int counterSites;
+    /**
+     * Control flow graph of the method once recorded, if counting by blocks.
+     */
+    ControlFlowGraph cfg;
+
+    MethodBuffer(MethodVisitor methodWriter, BytecodeCounter bytecodeCounter, CountingMode countingMode,
+                 boolean keepFrames, boolean hoistLoops, boolean targetsOnly, SiteTable sites, ChargeStubs stubs,
+                 String method) {
+        super(Opcodes.ASM9, methodWriter);
+        this.bytecodeCounter = bytecodeCounter;
+        this.countingMode = countingMode;
+        this.keepFrames = keepFrames;
+        this.hoistLoops = hoistLoops;
+        this.targetsOnly = targetsOnly;
+        this.sites = sites;
+        this.stubs = stubs;
+        this.method = method;
+    }
+
+    /**
+     * Adds bytecodes to the charge of the last recorded node.
+     */
+    void charge(int bytecodes) {
+        nodes.get(nodes.size() - 1).charge += bytecodes;
+    }
+
+    private CodeNode add(int kind, int opcode) {
+        CodeNode node = new CodeNode(kind, opcode);
+        nodes.add(node);
+        return node;
+    }
+
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+        CodeNode node = add(CodeNode.FIELD_INSN, opcode);
+        node.owner = owner;
+        node.name = name;
+        node.descriptor = descriptor;
+    }
+
+    @Override
+    public void visitIincInsn(int varIndex, int increment) {
+        CodeNode node = add(CodeNode.IINC_INSN, Opcodes.IINC);
+        node.operand = varIndex;
+        node.value = increment;
+    }
+
+    @Override
+    public void visitInsn(int opcode) {
+        add(CodeNode.INSN, opcode);
+    }
+
+    @Override
+    public void visitIntInsn(int opcode, int operand) {
+        add(CodeNode.INT_INSN, opcode).operand = operand;
+    }
+
+    @Override
+    public void visitInvokeDynamicInsn(String name, String descriptor, Handle bmh, Object... bma) {
+        CodeNode node = add(CodeNode.INVOKE_DYNAMIC_INSN, Opcodes.INVOKEDYNAMIC);
+        node.name = name;
+        node.descriptor = descriptor;
+        node.value = bmh;
+        node.values = bma;
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+        add(CodeNode.JUMP_INSN, opcode).label = label;
+    }
+
+    @Override
+    public void visitLabel(Label label) {
+        add(CodeNode.LABEL, -1).label = label;
+    }
+
+    @Override
+    public void visitLdcInsn(Object value) {
+        add(CodeNode.LDC_INSN, Opcodes.LDC).value = value;
+    }
+
+    @Override
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+        CodeNode node = add(CodeNode.LOOKUPSWITCH_INSN, Opcodes.LOOKUPSWITCH);
+        node.label = dflt;
+        node.keys = keys;
+        node.labels = labels;
+    }
+
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+        CodeNode node = add(CodeNode.METHOD_INSN, opcode);
+        node.owner = owner;
+        node.name = name;
+        node.descriptor = descriptor;
+        node.isInterface = isInterface;
+    }
+
+    @Override
+    public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+        CodeNode node = add(CodeNode.MULTIANEWARRAY_INSN, Opcodes.MULTIANEWARRAY);
+        node.descriptor = descriptor;
+        node.operand = numDimensions;
+    }
+
+    @Override
+    public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+        CodeNode node = add(CodeNode.TABLESWITCH_INSN, Opcodes.TABLESWITCH);
+        node.keys = new int[]{min, max};
+        node.label = dflt;
+        node.labels = labels;
+    }
+
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+        add(CodeNode.TYPE_INSN, opcode).descriptor = type;
+    }
+
+    @Override
+    public void visitVarInsn(int opcode, int varIndex) {
+        add(CodeNode.VAR_INSN, opcode).operand = varIndex;
+    }
+
+    @Override
+    public void visitLineNumber(int line, Label start) {
+        CodeNode node = add(CodeNode.LINE, -1);
+        node.operand = line;
+        node.label = start;
+    }
+
+    @Override
+    public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {
+        CodeNode node = add(CodeNode.FRAME, type);
+        node.operand = numLocal;
+        node.values = local == null ? null : Arrays.copyOf(local, numLocal);
+        node.stack = stack == null ? new Object[0] : Arrays.copyOf(stack, numStack);
+    }
+
+    @Override
+    public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+        tryCatchBlocks.add(new Label[]{start, end, handler});
+        super.visitTryCatchBlock(start, end, handler, type);
+    }
+
+    @Override
+    public AnnotationVisitor visitInsnAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+        // The annotation content is visited later, so it can't be recorded. Drop it instead of misplacing it
+        return null;
+    }
+
+    @Override
+    public void visitLocalVariable(String name, String descriptor, String signature, Label start, Label end,
+                                   int index) {
+        add(CodeNode.OTHER, -1).action = mv -> mv.visitLocalVariable(name, descriptor, signature, start, end, index);
+    }
+
+    @Override
+    public AnnotationVisitor visitLocalVariableAnnotation(int typeRef, TypePath typePath, Label[] start, Label[] end,
+                                                          int[] index, String descriptor, boolean visible) {
+        // Same as instruction annotations
+        return null;
+    }
+
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+        if (targetsOnly) unchargeLabels();
+        if (countingMode == CountingMode.INSTRUCTION) {
+            replayInstructions();
+            super.visitMaxs(maxStack, maxLocals);
+            return;
+        }
+        cfg = ControlFlowGraph.build(nodes, tryCatchBlocks);
+        boolean local = countingMode == CountingMode.LOCAL;
+        // The counter goes after all the local variables of the method, followed by the start of the loops
+        int counter = maxLocals, start = local ? maxLocals + 1 : maxLocals;
+        List<CountedLoop> loops = hoistLoops ? CountedLoop.find(cfg) : List.of();
+        CountedLoop[] loopOfBlock = new CountedLoop[cfg.blocks.size()];
+        for (CountedLoop loop : loops) {
+            for (BasicBlock block : loop.path) loopOfBlock[block.index] = loop;
+        }
+        // Exits of the loops through jumps: refund label, loop, block and original target
+        List<Object[]> refunds = new ArrayList<>();
+        // Exits of the loops through exceptions thrown out of the method: start, end and handler labels, by loop.
+        // They go after the handlers of the method, none of which covers the loops, and before the one of the
+        // local counter, so they are registered before visiting any code
+        Map<CountedLoop, Label[]> rethrows = new LinkedHashMap<>();
+        for (CountedLoop loop : loops) {
+            Label[] labels = {new Label(), new Label(), new Label()};
+            mv.visitTryCatchBlock(labels[0], labels[1], labels[2], null);
+            rethrows.put(loop, labels);
+        }
+        // Exceptions thrown out of the method: start, end and handler labels of the flush of the local counter
+        Label[] flush = null;
+        // In constructors, from the invocation of the super (or another) constructor, since no handler can cover
+        // the code before this is initialized
+        int flushFrom = local ? findFlushStart() : -1;
+        if (flushFrom >= 0) {
+            flush = new Label[]{new Label(), new Label(), new Label()};
+            mv.visitTryCatchBlock(flush[0], flush[1], flush[2], null);
+        }
+        if (local) {
+            mv.visitInsn(Opcodes.ICONST_0);
+            mv.visitVarInsn(Opcodes.ISTORE, counter);
+        }
+        if (flushFrom == 0) mv.visitLabel(flush[0]);
+        // Line of the code being replayed, for the sites
+        int line = 0;
+        for (BasicBlock block : cfg.blocks) {
+            CountedLoop loop = loopOfBlock[block.index];
+            if (loop != null && block == loop.header) {
+                loop.emitCharge(mv, bytecodeCounter, start);
+                counterSites++;
+                mv.visitLabel(rethrows.get(loop)[0]);
+            }
+            for (int i = block.start; i <= block.end; i++) {
+                if (i == block.entry && block.reachable && loop == null) {
+                    if (local && block.handler) flushCounter(counter);
+                    incrementCounter(block.cost, counter);
+                    if (sites != null && block.cost > 0) sites.emitHit(mv, sites.add(method, line, block.cost));
+                }
+                if (i == block.end) {
+                    if (loop != null && loop.refundsExit(block) && loop.fallsThroughExit(cfg, block)) {
+                        loop.emitRefund(mv, bytecodeCounter, start, block);
+                        counterSites++;
+                    }
+                    break;
+                }
+                CodeNode node = nodes.get(i);
+                if (node.kind == CodeNode.LINE) line = node.operand;
+                if (local && block.reachable && loop == null && i >= block.entry && needsFlush(cfg, block, node)) {
+                    flushCounter(counter);
+                }
+                if (local && keepFrames && node.kind == CodeNode.FRAME) {
+                    acceptFrameWithCounter(node, counter);
+                } else if (loop != null && loop.refundsExit(block) && i == block.end - 1 &&
+                        !loop.getJumpExits(cfg, block).isEmpty()) {
+                    acceptWithRefunds(node, loop, block, loop.getJumpExits(cfg, block), refunds);
+                } else {
+                    node.accept(mv);
+                }
+                if (i + 1 == flushFrom) mv.visitLabel(flush[0]);
+            }
+            if (loop != null && block == loop.latch) mv.visitLabel(rethrows.get(loop)[1]);
+        }
+        for (Object[] refund : refunds) {
+            mv.visitLabel((Label) refund[0]);
+            ((CountedLoop) refund[1]).emitRefund(mv, bytecodeCounter, start, (BasicBlock) refund[2]);
+            counterSites++;
+            mv.visitJumpInsn(Opcodes.GOTO, (Label) refund[3]);
+        }
+        for (Map.Entry<CountedLoop, Label[]> rethrow : rethrows.entrySet()) {
+            mv.visitLabel(rethrow.getValue()[2]);
+            // The block that threw isn't known, so the whole iteration is kept, as if thrown from the latch
+            CountedLoop loop = rethrow.getKey();
+            loop.emitRefund(mv, bytecodeCounter, start, loop.latch);
+            counterSites++;
+            mv.visitInsn(Opcodes.ATHROW);
+        }
+        if (flush != null) {
+            // Also the instructions that throw implicitly (e.g., an array index out of bounds), which don't flush
+            mv.visitLabel(flush[1]);
+            mv.visitLabel(flush[2]);
+            if (keepFrames) {
+                Object[] locals = new Object[counter + 1];
+                Arrays.fill(locals, Opcodes.TOP);
+                locals[counter] = Opcodes.INTEGER;
+                mv.visitFrame(Opcodes.F_NEW, locals.length, locals, 1, new Object[]{"java/lang/Throwable"});
+            }
+            flushCounter(counter);
+            mv.visitInsn(Opcodes.ATHROW);
+        }
+        super.visitMaxs(maxStack, loops.isEmpty() ? start : start + 1);
+    }
+
+    /**
+     * Returns the index of the node from which the handler that flushes the
+     * local counter covers the code: 0, or, in a constructor, the node after
+     * the invocation of the constructor on {@code this} (the first one that
+     * isn't on an object created before), or -1 if not found.
+     */
+    private int findFlushStart() {
+        if (!method.startsWith("<init>")) return 0;
+        int created = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            CodeNode node = nodes.get(i);
+            if (node.kind == CodeNode.TYPE_INSN && node.opcode == Opcodes.NEW) created++;
+            if (node.kind == CodeNode.METHOD_INSN && node.opcode == Opcodes.INVOKESPECIAL &&
+                    node.name.equals("<init>")) {
+                if (created == 0) return i + 1;
+                created--;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Drops the charges of the labels where the control never jumps to (e.g.,
+     * the ones of the line numbers or the ranges of the try-catch blocks).
+     */
+    private void unchargeLabels() {
+        Set<Label> targets = new HashSet<>();
+        for (CodeNode node : nodes) {
+            if (node.kind == CodeNode.JUMP_INSN) targets.add(node.label);
+            if (node.kind == CodeNode.TABLESWITCH_INSN || node.kind == CodeNode.LOOKUPSWITCH_INSN) {
+                targets.add(node.label);
+                targets.addAll(Arrays.asList(node.labels));
+            }
+        }
+        for (Label[] tryCatchBlock : tryCatchBlocks) targets.add(tryCatchBlock[2]);
+        for (CodeNode node : nodes) {
+            // The only charge of a label is its own, since nothing is charged after it until the next instruction
+            if (node.kind == CodeNode.LABEL && !targets.contains(node.label)) node.charge = 0;
+        }
+    }
+
+    /**
+     * Visits a jump or switch that leaves a loop, jumping to refunds instead
+     * of the exits of the loop.
+     */
+    private void acceptWithRefunds(CodeNode node, CountedLoop loop, BasicBlock block, List<Label> exits,
+                                   List<Object[]> refunds) {
+        Map<Label, Label> targets = new HashMap<>();
+        for (Label exit : exits) {
+            Label refund = new Label();
+            targets.put(exit, refund);
+            refunds.add(new Object[]{refund, loop, block, exit});
+        }
+        Label label = targets.getOrDefault(node.label, node.label);
+        if (node.kind == CodeNode.JUMP_INSN) {
+            mv.visitJumpInsn(node.opcode, label);
+            return;
+        }
+        Label[] labels = new Label[node.labels.length];
+        for (int i = 0; i < labels.length; i++) labels[i] = targets.getOrDefault(node.labels[i], node.labels[i]);
+        if (node.kind == CodeNode.TABLESWITCH_INSN) {
+            mv.visitTableSwitchInsn(node.keys[0], node.keys[1], label, labels);
+        } else {
+            mv.visitLookupSwitchInsn(label, node.keys, labels);
+        }
+    }
+
+    /**
+     * Replays the code with the counter of each instruction right after it,
+     * as the method instrumenter does, but placing the counters of the labels
+     * after their frames, and dropping the counters that can't be reached
+     * (i.e., after unconditional jumps, returns and throws), so that the
+     * original frames are still valid.
+     */
+    private void replayInstructions() {
+        int pending = 0;
+        for (CodeNode node : nodes) {
+            if (node.kind == CodeNode.LABEL) {
+                // The class reader visits a single label per offset, so this never separates a label from its frame
+                incrementCounter(pending, 0);
+                node.accept(mv);
+                pending = node.charge;
+            } else if (node.isPseudo()) {
+                node.accept(mv);
+                pending += node.charge;
+            } else {
+                incrementCounter(pending, 0);
+                pending = 0;
+                node.accept(mv);
+                if (node.fallsThrough()) incrementCounter(node.charge, 0);
+            }
+        }
+    }
+
+    /**
+     * Visits an (expanded) frame adding the local counter, which is always
+     * initialized, after the local variables of the method.
+     */
+    private void acceptFrameWithCounter(CodeNode node, int counter) {
+        List<Object> locals = new ArrayList<>();
+        int slots = 0;
+        for (int i = 0; i < node.operand; i++) {
+            Object local = node.values[i];
+            locals.add(local);
+            slots += local == Opcodes.LONG || local == Opcodes.DOUBLE ? 2 : 1;
+        }
+        for (; slots < counter; slots++) locals.add(Opcodes.TOP);
+        locals.add(Opcodes.INTEGER);
+        mv.visitFrame(Opcodes.F_NEW, locals.size(), locals.toArray(), node.stack.length, node.stack);
+    }
+
+    private void incrementCounter(int bytecodes, int counter) {
+        if (bytecodes == 0) return;
+        counterSites++;
+        if (countingMode != CountingMode.LOCAL) {
+            if (stubs != null) {
+                stubs.emitCharge(mv, bytecodes);
+            } else {
+                bytecodeCounter.emit(mv, bytecodes);
+            }
+            return;
+        }
+        // IINC increments are limited to signed shorts
+        for (; bytecodes > Short.MAX_VALUE; bytecodes -= Short.MAX_VALUE) {
+            mv.visitIincInsn(counter, Short.MAX_VALUE);
+        }
+        mv.visitIincInsn(counter, bytecodes);
+    }
+
+    private void flushCounter(int counter) {
+        counterSites++;
+        if (stubs != null) {
+            stubs.emitFlush(mv, counter);
+            return;
+        }
+        mv.visitVarInsn(Opcodes.ILOAD, counter);
+        bytecodeCounter.emit(mv);
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitVarInsn(Opcodes.ISTORE, counter);
+    }
+
+    private static boolean needsFlush(ControlFlowGraph cfg, BasicBlock block, CodeNode node) {
+        if (node.isInvocation()) return true;
+        if (!node.isTerminator()) return false;
+        // Returns and throws, or jumps and switches to a previous block
+        if (node.kind == CodeNode.INSN) return true;
+        return node.kind != CodeNode.VAR_INSN && cfg.jumpsBackward(block, node);
+    }
+}
@@ -2,10 +2,7 @@ package instrumenter;
 
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
-import org.objectweb.asm.Handle;
-import org.objectweb.asm.Label;
-import org.objectweb.asm.MethodVisitor;
-import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.*;
 
 /**
  * Class to instrument methods.
@@ -15,153 +12,292 @@ import org.objectweb.asm.Opcodes;
  * call a method, access a field...).
  * <p>
  * Pretty much all instruction are instrumented, meaning that a call to
- * incrementing the bytecodes count is injected right afterward.
+ * incrementing the bytecodes count is injected right afterward. When counting
+ * by basic blocks, the instructions are recorded by a {@link MethodBuffer}
+ * instead, together with their cost, and the counters are injected once the
+ * whole method is known. The same happens when the original stack map frames
+ * are kept.
  * <p>
- * Whenever classes or methods are used, they are checked.
+ * The sites with a {@link DynamicCost} (array allocations and some library
+ * methods) are replaced by the invocation of a stub that charges the size of
+ * their operands (see {@link DynamicCostStubs}), and they are charged their
+ * base cost as usual.
+ * <p>
+ * Unless the debug attributes are kept, the local variables are dropped, and
+ * only the labels that are targets of jumps, switches or exception handlers
+ * are charged (see {@link DebugMode}).
+ * <p>
+ * Whenever classes or methods are used, they are checked. When the class is
+ * only validated, nothing is written nor counted.
  */
 class MethodInstrumenter extends MethodVisitor {
     private static final Logger log = LogManager.getRootLogger();
 
-    MethodInstrumenter(MethodVisitor methodWriter) {
-        super(Opcodes.ASM9, methodWriter);
+    private final Instrumenter instrumenter;
+    private final ClassInstrumenter classInstrumenter;
+    private final MethodBuffer buffer;
+    private final ChargeStubs stubs;
+    private final DynamicCostStubs costStubs;
+    private final boolean trace;
+    private final String method;
+
+    /**
+     * @param classInstrumenter Instrumenter of the class of the method.
+     * @param method            Name and descriptor of the method.
+     */
+    MethodInstrumenter(ClassInstrumenter classInstrumenter, MethodVisitor methodWriter, String method) {
+        super(Opcodes.ASM9, isBuffered(classInstrumenter) ? new MethodBuffer(methodWriter,
+                classInstrumenter.instrumenter.counter, classInstrumenter.instrumenter.options.countingMode,
+                classInstrumenter.instrumenter.options.frameMode == FrameMode.KEEP,
+                classInstrumenter.instrumenter.options.hoistLoops,
+                classInstrumenter.instrumenter.options.debugMode != DebugMode.KEEP, classInstrumenter.sites,
+                classInstrumenter.stubs, method) : methodWriter);
+        this.instrumenter = classInstrumenter.instrumenter;
+        this.classInstrumenter = classInstrumenter;
+        this.stubs = classInstrumenter.stubs;
+        this.costStubs = classInstrumenter.costStubs;
+        this.trace = classInstrumenter.trace;
+        this.method = method;
+        buffer = isBuffered(classInstrumenter) ? (MethodBuffer) mv : null;
+    }
+
+    /**
+     * Whether the code must be recorded before writing it: to count by basic
+     * blocks, to place the counters where the original frames remain valid,
+     * or to know which labels are targets before charging them.
+     */
+    private static boolean isBuffered(ClassInstrumenter classInstrumenter) {
+        if (classInstrumenter.isValidating()) return false;
+        Instrumenter instrumenter = classInstrumenter.instrumenter;
+        return instrumenter.options.countingMode != CountingMode.INSTRUCTION ||
+                instrumenter.options.frameMode == FrameMode.KEEP || instrumenter.options.debugMode != DebugMode.KEEP;
     }
 
     @Override
     public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
-        log.debug("MethodInstrumenter::visitFieldInsn " + opcode + " " + owner + " " + name + " " + descriptor);
-        Instrumenter.checkValidClass(owner);
-        Instrumenter.checkValidDescriptor(descriptor);
+        if (trace) log.debug("MethodInstrumenter::visitFieldInsn " + opcode + " " + owner + " " +
+                name + " " + descriptor);
+        classInstrumenter.checkValidClass(owner);
+        classInstrumenter.checkValidDescriptor(descriptor);
+        classInstrumenter.checkNotReserved(name);
         super.visitFieldInsn(opcode, owner, name, descriptor);
         incrementBytecodeCounter();
     }
 
     @Override
     public void visitIincInsn(int varIndex, int increment) {
-        log.debug("MethodInstrumenter::visitIincInsn");
+        if (trace) log.debug("MethodInstrumenter::visitIincInsn");
         super.visitIincInsn(varIndex, increment);
         incrementBytecodeCounter();
     }
 
     @Override
     public void visitInsn(int opcode) {
-        log.debug("MethodInstrumenter::visitInsn " + opcode);
+        if (trace) log.debug("MethodInstrumenter::visitInsn " + opcode);
         super.visitInsn(opcode);
         incrementBytecodeCounter();
     }
 
     @Override
     public void visitIntInsn(int opcode, int operand) {
-        log.debug("MethodInstrumenter::visitIntInsn " + opcode + " " + operand);
+        if (trace) log.debug("MethodInstrumenter::visitIntInsn " + opcode + " " + operand);
+        if (opcode == Opcodes.NEWARRAY) {
+            visitNewArray(opcode, null, operand);
+            return;
+        }
         super.visitIntInsn(opcode, operand);
         incrementBytecodeCounter();
     }
 
     @Override
     public void visitInvokeDynamicInsn(String name, String descriptor, Handle bmh, Object... bma) {
-        log.debug("MethodInstrumenter::visitInvokeDynamicInsn " + name + " " + descriptor + " " + bmh.getOwner() + " "
-                + bmh.getName() + " " + bmh.getDesc());
-        Instrumenter.checkValidDescriptor(descriptor);
-        Instrumenter.checkValidMethod(bmh.getOwner(), bmh.getName());
+        if (trace) log.debug("MethodInstrumenter::visitInvokeDynamicInsn " + name + " " +
+                descriptor + " " + bmh.getOwner() + " " + bmh.getName() + " " + bmh.getDesc());
+        classInstrumenter.checkValidDescriptor(descriptor);
+        classInstrumenter.checkValidMethod(bmh.getOwner(), bmh.getName());
         super.visitInvokeDynamicInsn(name, descriptor, bmh, bma);
         incrementBytecodeCounter();
     }
 
     @Override
     public void visitJumpInsn(int opcode, Label label) {
-        log.debug("MethodInstrumenter::visitJumpInsn " + opcode);
+        if (trace) log.debug("MethodInstrumenter::visitJumpInsn " + opcode);
         super.visitJumpInsn(opcode, label);
         incrementBytecodeCounter();
     }
 
     @Override
     public void visitLabel(Label label) {
-        log.debug("MethodInstrumenter::visitLabel");
+        if (trace) log.debug("MethodInstrumenter::visitLabel");
         super.visitLabel(label);
         incrementBytecodeCounter();
     }
 
     @Override
     public void visitLdcInsn(Object value) {
-        log.debug("MethodInstrumenter::visitLdcInsn");
+        if (trace) log.debug("MethodInstrumenter::visitLdcInsn");
         super.visitLdcInsn(value);
         incrementBytecodeCounter();
     }
 
     @Override
     public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
-        log.debug("MethodInstrumenter::visitLookupSwitchInsn");
+        if (trace) log.debug("MethodInstrumenter::visitLookupSwitchInsn");
         super.visitLookupSwitchInsn(dflt, keys, labels);
         incrementBytecodeCounter();
     }
 
     @Override
     public void visitMethodInsn(int opcode, String owner, String name, String descriptor) {
-        log.debug("MethodInstrumenter::visitMethodInsn[deprecated] " + opcode + " " + owner + " " + name + " " + descriptor);
-        Instrumenter.checkValidClass(owner);
-        Instrumenter.checkValidMethod(owner, name);
-        Instrumenter.checkValidDescriptor(descriptor);
+        if (trace) log.debug("MethodInstrumenter::visitMethodInsn[deprecated] " + opcode + " " +
+                owner + " " + name + " " + descriptor);
+        classInstrumenter.checkValidClass(owner);
+        classInstrumenter.checkValidMethod(owner, name);
+        classInstrumenter.checkValidDescriptor(descriptor);
+        classInstrumenter.checkNotReserved(name);
         super.visitMethodInsn(opcode, owner, name, descriptor);
-        incrementBytecodeCounter(owner + "/" + name);
+        incrementBytecodeCounter(owner, name);
     }
 
     @Override
     public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
-        log.debug("MethodInstrumenter::visitMethodInsn " + opcode + " " + owner + " " + name + " " + descriptor);
-        Instrumenter.checkValidClass(owner);
-        Instrumenter.checkValidMethod(owner, name);
-        Instrumenter.checkValidDescriptor(descriptor);
-        super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
-        incrementBytecodeCounter(owner + "/" + name);
+        if (trace) log.debug("MethodInstrumenter::visitMethodInsn " + opcode + " " + owner + " " +
+                name + " " + descriptor);
+        classInstrumenter.checkValidClass(owner);
+        classInstrumenter.checkValidMethod(owner, name);
+        classInstrumenter.checkValidDescriptor(descriptor);
+        classInstrumenter.checkNotReserved(name);
+        DynamicCost cost = mv != null ? instrumenter.getDynamicCost(owner, name, descriptor) : null;
+        if (cost == null) {
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+            incrementBytecodeCounter(owner, name);
+            return;
+        }
+        if (costStubs == null || !costStubs.emitInvocation(mv, cost, opcode, owner, name, descriptor, isInterface)) {
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+        }
+        incrementBytecodeCounter(cost.base);
     }
 
     @Override
     public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
-        log.debug("MethodInstrumenter::visitMultiANewArrayInsn " + descriptor);
-        Instrumenter.checkValidDescriptor(descriptor);
-        super.visitMultiANewArrayInsn(descriptor, numDimensions);
-        incrementBytecodeCounter();
+        if (trace) log.debug("MethodInstrumenter::visitMultiANewArrayInsn " + descriptor);
+        classInstrumenter.checkValidDescriptor(descriptor);
+        visitNewArray(Opcodes.MULTIANEWARRAY, descriptor, numDimensions);
+    }
+
+    /**
+     * Visits an array allocation, through the stub of its dynamic cost, if
+     * any.
+     */
+    private void visitNewArray(int opcode, String type, int operand) {
+        DynamicCost cost = mv != null ?
+                instrumenter.getDynamicCost(DynamicCost.ARRAY_OWNER, DynamicCost.ARRAY_NAME, null) : null;
+        if (cost == null || costStubs == null || !costStubs.emitNewArray(mv, cost, opcode, type, operand)) {
+            if (opcode == Opcodes.NEWARRAY) {
+                super.visitIntInsn(opcode, operand);
+            } else if (opcode == Opcodes.ANEWARRAY) {
+                super.visitTypeInsn(opcode, type);
+            } else {
+                super.visitMultiANewArrayInsn(type, operand);
+            }
+        }
+        incrementBytecodeCounter(cost != null ? cost.base : 1);
     }
 
     @Override
     public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
-        log.debug("MethodInstrumenter::visitTableSwitchInsn");
+        if (trace) log.debug("MethodInstrumenter::visitTableSwitchInsn");
         super.visitTableSwitchInsn(min, max, dflt, labels);
         incrementBytecodeCounter();
     }
 
     @Override
     public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
-        log.debug("MethodInstrumenter::visitTryCatchBlock " + type);
-        Instrumenter.checkValidClass(type);
+        if (trace) log.debug("MethodInstrumenter::visitTryCatchBlock " + type);
+        classInstrumenter.checkValidClass(type);
         super.visitTryCatchBlock(start, end, handler, type);
     }
 
     @Override
     public void visitTypeInsn(int opcode, String type) {
-        log.debug("MethodInstrumenter::visitTypeInsn " + opcode + " " + type);
-        Instrumenter.checkValidClass(type);
+        if (trace) log.debug("MethodInstrumenter::visitTypeInsn " + opcode + " " + type);
+        classInstrumenter.checkValidClass(type);
+        if (opcode == Opcodes.ANEWARRAY) {
+            visitNewArray(opcode, type, 0);
+            return;
+        }
         super.visitTypeInsn(opcode, type);
         incrementBytecodeCounter();
     }
 
+    @Override
+    public void visitEnd() {
+        super.visitEnd();
+        if (buffer != null) classInstrumenter.counterSites += buffer.counterSites;
+        if (classInstrumenter.costs != null && buffer != null && buffer.cfg != null) {
+            classInstrumenter.costs.add(classInstrumenter.className, method, buffer.cfg);
+        }
+    }
+
+    @Override
+    public void visitLocalVariable(String name, String descriptor, String signature, Label start, Label end,
+                                   int index) {
+        if (instrumenter.options.debugMode == DebugMode.KEEP) {
+            super.visitLocalVariable(name, descriptor, signature, start, end, index);
+        }
+    }
+
+    @Override
+    public AnnotationVisitor visitLocalVariableAnnotation(int typeRef, TypePath typePath, Label[] start, Label[] end,
+                                                          int[] index, String descriptor, boolean visible) {
+        if (instrumenter.options.debugMode != DebugMode.KEEP) return null;
+        return super.visitLocalVariableAnnotation(typeRef, typePath, start, end, index, descriptor, visible);
+    }
+
     @Override
     public void visitVarInsn(int opcode, int varIndex) {
-        log.debug("MethodInstrumenter::visitVarInsn " + opcode);
+        if (trace) log.debug("MethodInstrumenter::visitVarInsn " + opcode);
         super.visitVarInsn(opcode, varIndex);
         incrementBytecodeCounter();
     }
 
+    /**
+     * Emits the shortest instruction that pushes an {@code int} constant.
+     */
+    static void emitInt(MethodVisitor methodWriter, int value) {
+        if (value >= -1 && value <= 5) {
+            methodWriter.visitInsn(Opcodes.ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            methodWriter.visitIntInsn(Opcodes.BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            methodWriter.visitIntInsn(Opcodes.SIPUSH, value);
+        } else {
+            methodWriter.visitLdcInsn(value);
+        }
+    }
+
     private void incrementBytecodeCounter(int bytecodes) {
-        super.visitLdcInsn(bytecodes);
-        super.visitMethodInsn(Opcodes.INVOKESTATIC, "pirates/threading/ThreadManager", "addBytecodes",
-                "(I)V", false);
+        // Only validating
+        if (mv == null) return;
+        if (buffer != null) {
+            buffer.charge(bytecodes);
+            return;
+        }
+        classInstrumenter.counterSites++;
+        if (stubs != null) {
+            stubs.emitCharge(mv, bytecodes);
+            return;
+        }
+        instrumenter.counter.emit(mv, bytecodes);
     }
 
     private void incrementBytecodeCounter() {
         incrementBytecodeCounter(1);
     }
 
-    private void incrementBytecodeCounter(String methodName) {
-        incrementBytecodeCounter(Instrumenter.getMethodBytecodeCost(methodName));
+    private void incrementBytecodeCounter(String owner, String name) {
+        if (mv == null) return;
+        incrementBytecodeCounter(instrumenter.getMethodBytecodeCost(owner, name));
     }
 }
@@ -0,0 +1,71 @@
+package instrumenter;
+
+import java.util.Map;
+
+/**
+ * Immutable hash table of names (e.g., internal class names), which can be
+ * queried with a range of any {@link CharSequence}, so looking up a part of a
+ * descriptor or a class name doesn't need to allocate a substring.
+ * <p>
+ * The hash of a range is the same as the one of the equivalent
+ * {@link String}.
+ */
+final class NameTable<V> {
+    private final String[] keys;
+    private final Object[] values;
+    private final int mask;
+
+    NameTable(Map<String, ? extends V> entries) {
+        // Keep the load factor at 0.5 at most
+        int capacity = 2;
+        while (capacity < 2 * entries.size()) capacity <<= 1;
+        keys = new String[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        for (Map.Entry<String, ? extends V> entry : entries.entrySet()) {
+            String key = entry.getKey();
+            int slot = spread(key.hashCode()) & mask;
+            while (keys[slot] != null) slot = (slot + 1) & mask;
+            keys[slot] = key;
+            values[slot] = entry.getValue();
+        }
+    }
+
+    V get(CharSequence name) {
+        return get(name, 0, name.length());
+    }
+
+    /**
+     * Returns the value of the name between {@code start} (inclusive) and
+     * {@code end} (exclusive), or {@code null} if it is not in the table.
+     */
+    @SuppressWarnings("unchecked")
+    V get(CharSequence name, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) hash = 31 * hash + name.charAt(i);
+        for (int slot = spread(hash) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+            if (matches(keys[slot], name, start, end)) return (V) values[slot];
+        }
+        return null;
+    }
+
+    boolean contains(CharSequence name) {
+        return get(name) != null;
+    }
+
+    boolean contains(CharSequence name, int start, int end) {
+        return get(name, start, end) != null;
+    }
+
+    private static boolean matches(String key, CharSequence name, int start, int end) {
+        if (key.length() != end - start) return false;
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) != name.charAt(start + i)) return false;
+        }
+        return true;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,98 @@
+package instrumenter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class to store the rules compiled into {@link NameTable}s, so that the
+ * checks done for every instruction don't allocate:
+ * - The allowed libraries, by package (ended by {@code /}).
+ * - The disallowed classes.
+ * - The disallowed methods, by owner and then by name.
+ * - The methods in bytecodes costs, by owner and then by name.
+ * - The dynamic costs, by owner and then by name.
+ */
+final class RuleIndex {
+    private final NameTable<Boolean> allowedLibraries, disallowedClasses;
+    private final NameTable<NameTable<Boolean>> disallowedMethods;
+    private final NameTable<NameTable<Integer>> methodBytecodeCosts;
+    private final NameTable<NameTable<DynamicCost[]>> dynamicCosts;
+
+    RuleIndex(RuleSet rules) {
+        allowedLibraries = toTable(rules.allowedLibraries);
+        disallowedClasses = toTable(rules.disallowedClasses);
+        Map<String, NameTable<Boolean>> methods = new HashMap<>();
+        rules.disallowedMethods.forEach((owner, names) -> methods.put(owner, toTable(names)));
+        disallowedMethods = new NameTable<>(methods);
+        // Methods are given as `owner/name`
+        Map<String, Map<String, Integer>> costs = new HashMap<>();
+        rules.methodBytecodeCosts.forEach((method, cost) -> {
+            int indexBetweenOwnerAndName = method.lastIndexOf('/');
+            costs.computeIfAbsent(method.substring(0, indexBetweenOwnerAndName), k -> new HashMap<>())
+                    .put(method.substring(indexBetweenOwnerAndName + 1), cost);
+        });
+        Map<String, NameTable<Integer>> costTables = new HashMap<>();
+        costs.forEach((owner, names) -> costTables.put(owner, new NameTable<>(names)));
+        methodBytecodeCosts = new NameTable<>(costTables);
+        Map<String, Map<String, DynamicCost[]>> dynamic = new HashMap<>();
+        rules.dynamicCosts.forEach((method, methodCosts) -> {
+            int indexBetweenOwnerAndName = method.lastIndexOf('/');
+            dynamic.computeIfAbsent(method.substring(0, indexBetweenOwnerAndName), k -> new HashMap<>())
+                    .put(method.substring(indexBetweenOwnerAndName + 1), methodCosts.toArray(new DynamicCost[0]));
+        });
+        Map<String, NameTable<DynamicCost[]>> dynamicTables = new HashMap<>();
+        dynamic.forEach((owner, names) -> dynamicTables.put(owner, new NameTable<>(names)));
+        dynamicCosts = new NameTable<>(dynamicTables);
+    }
+
+    /**
+     * Whether the library (i.e., the package, ended by {@code /}) between
+     * {@code start} and {@code end} is allowed.
+     */
+    boolean isAllowedLibrary(CharSequence name, int start, int end) {
+        return allowedLibraries.contains(name, start, end);
+    }
+
+    boolean isDisallowedClass(CharSequence name, int start, int end) {
+        return disallowedClasses.contains(name, start, end);
+    }
+
+    boolean isDisallowedMethod(CharSequence owner, CharSequence name) {
+        NameTable<Boolean> names = disallowedMethods.get(owner);
+        return names != null && names.contains(name);
+    }
+
+    /**
+     * Returns the cost of the method, or {@code null} if it has no specific
+     * cost.
+     */
+    Integer getMethodBytecodeCost(CharSequence owner, CharSequence name) {
+        NameTable<Integer> names = methodBytecodeCosts.get(owner);
+        return names != null ? names.get(name) : null;
+    }
+
+    /**
+     * Returns the dynamic cost of the method with the descriptor, or else of
+     * any method with the name, or {@code null} if it has no dynamic cost.
+     */
+    DynamicCost getDynamicCost(CharSequence owner, CharSequence name, String descriptor) {
+        NameTable<DynamicCost[]> names = dynamicCosts.get(owner);
+        DynamicCost[] costs = names != null ? names.get(name) : null;
+        if (costs == null) return null;
+        DynamicCost ans = null;
+        for (DynamicCost cost : costs) {
+            if (cost.descriptor == null) {
+                ans = cost;
+            } else if (cost.descriptor.equals(descriptor)) {
+                return cost;
+            }
+        }
+        return ans;
+    }
+
+    private static NameTable<Boolean> toTable(Iterable<String> names) {
+        Map<String, Boolean> entries = new HashMap<>();
+        for (String name : names) entries.put(name, Boolean.TRUE);
+        return new NameTable<>(entries);
+    }
+}
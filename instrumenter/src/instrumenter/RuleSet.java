@@ -0,0 +1,98 @@
+package instrumenter;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Class to store the rules of an engine, compiled from its {@link EngineProfile}:
+ * - Counter of the bytecodes (owner, name and descriptor)
+ * - Budget of the running unit (owner, field and slow path), if any
+ * - Methods in bytecodes costs
+ * - Dynamic bytecodes costs, of methods and of the allocation of arrays
+ * - Allowed libraries
+ * - Disallowed classes
+ * - Disallowed methods
+ * - Static fields allowed, by prefix of their name
+ * <p>
+ * The rules are immutable, so they can be shared by any number of
+ * instrumenters running concurrently. They are also compiled into a
+ * {@link RuleIndex}, which is what the checks use.
+ */
+final class RuleSet {
+    final String engine;
+    final String counterOwner, counterName, counterDescriptor;
+    /**
+     * Budget field and its slow path ({@code null} if the engine has none).
+     */
+    final String budgetOwner, budgetField, budgetMethod;
+    final Map<String, Integer> methodBytecodeCosts;
+    final Map<String, List<DynamicCost>> dynamicCosts;
+    final Set<String> allowedLibraries, disallowedClasses;
+    final Map<String, List<String>> disallowedMethods;
+    final List<String> staticFieldPrefixes;
+    final RuleIndex index;
+
+    RuleSet(EngineProfile profile) {
+        this.engine = profile.engine;
+        this.counterOwner = profile.counterOwner;
+        this.counterName = profile.counterName;
+        this.counterDescriptor = profile.counterDescriptor;
+        this.budgetOwner = profile.budgetOwner;
+        this.budgetField = profile.budgetField;
+        this.budgetMethod = profile.budgetMethod;
+        this.methodBytecodeCosts = Collections.unmodifiableMap(new HashMap<>(profile.methodBytecodeCosts));
+        Map<String, List<DynamicCost>> dynamic = new HashMap<>();
+        profile.dynamicCosts.forEach((method, costs) -> dynamic.put(method, List.copyOf(costs)));
+        this.dynamicCosts = Collections.unmodifiableMap(dynamic);
+        this.allowedLibraries = Collections.unmodifiableSet(new HashSet<>(profile.allowedLibraries));
+        this.disallowedClasses = Collections.unmodifiableSet(new HashSet<>(profile.disallowedClasses));
+        Map<String, List<String>> methods = new HashMap<>();
+        profile.disallowedMethods.forEach((owner, names) -> methods.put(owner, List.copyOf(names)));
+        this.disallowedMethods = Collections.unmodifiableMap(methods);
+        this.staticFieldPrefixes = List.copyOf(new TreeSet<>(profile.staticFieldPrefixes));
+        this.index = new RuleIndex(this);
+    }
+
+    /**
+     * Whether a static field is allowed by its name (e.g., the
+     * {@code $SwitchMap$} fields that the compiler adds for the switches on
+     * enums).
+     */
+    boolean isStaticFieldExempt(String name) {
+        for (int i = 0; i < staticFieldPrefixes.size(); i++) {
+            if (name.startsWith(staticFieldPrefixes.get(i))) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Hash of all the rules, independent of the order in which they were
+     * loaded.
+     */
+    byte[] hash() {
+        MessageDigest digest = InstrumentationCache.newDigest();
+        StringBuilder sb = new StringBuilder("engine ").append(engine).append('\n');
+        sb.append("counter ").append(counterOwner).append(' ').append(counterName).append(' ')
+                .append(counterDescriptor).append('\n');
+        if (budgetOwner != null) {
+            sb.append("budget ").append(budgetOwner).append(' ').append(budgetField).append(' ')
+                    .append(budgetMethod).append('\n');
+        }
+        new TreeMap<>(methodBytecodeCosts).forEach((method, cost) ->
+                sb.append("cost ").append(method).append(' ').append(cost).append('\n'));
+        new TreeMap<>(dynamicCosts).forEach((method, costs) -> {
+            for (DynamicCost cost : costs) {
+                sb.append("dynamic-cost ").append(method).append(cost.descriptor != null ? cost.descriptor : "")
+                        .append(' ').append(cost).append('\n');
+            }
+        });
+        for (String library : new TreeSet<>(allowedLibraries)) sb.append("library ").append(library).append('\n');
+        for (String className : new TreeSet<>(disallowedClasses)) sb.append("class ").append(className).append('\n');
+        new TreeMap<>(disallowedMethods).forEach((owner, names) -> {
+            for (String name : new TreeSet<>(names)) sb.append("method ").append(owner).append(' ').append(name).append('\n');
+        });
+        for (String prefix : staticFieldPrefixes) sb.append("static-field ").append(prefix).append('\n');
+        return digest.digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -14,19 +14,22 @@ import org.objectweb.asm.signature.SignatureVisitor;
 class SignatureInstrumenter extends SignatureVisitor {
     private static final Logger log = LogManager.getRootLogger();
 
-    SignatureInstrumenter() {
+    private final Instrumenter instrumenter;
+
+    SignatureInstrumenter(Instrumenter instrumenter) {
         super(Opcodes.ASM9);
+        this.instrumenter = instrumenter;
     }
 
     @Override
     public void visitClassType(String name) {
-        log.debug("SignatureInstrumenter::visitClassType " + name);
-        Instrumenter.checkValidClass(name);
+        if (log.isDebugEnabled()) log.debug("SignatureInstrumenter::visitClassType " + name);
+        instrumenter.checkValidClass(name);
     }
 
     @Override
     public void visitInnerClassType(String name) {
-        log.debug("SignatureInstrumenter::visitInnerClassType " + name);
-        Instrumenter.checkValidClass(name);
+        if (log.isDebugEnabled()) log.debug("SignatureInstrumenter::visitInnerClassType " + name);
+        instrumenter.checkValidClass(name);
     }
 }
@@ -0,0 +1,113 @@
+package instrumenter;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Class to store the profiling sites of a class being instrumented.
+ * <p>
+ * A site is a basic block with a cost. Each one gets a compact id within its
+ * class, and its executions are counted in the slot of that id of a
+ * {@code long[]} histogram, a static field of the class allocated when the
+ * class is initialized. After a match, the engine can read the histograms
+ * and, with the side-car site table, attribute the bytecodes charged to each
+ * class, method and line.
+ * <p>
+ * Rows of the site table, separated by tabs:
+ * - Class name.
+ * - Site id.
+ * - Method name and descriptor.
+ * - Line number of the block (0 if unknown).
+ * - Bytecodes charged each time the block is executed.
+ */
+final class SiteTable {
+    static final String SITES_FIELD = Instrumenter.RESERVED_PREFIX + "Sites",
+            COUNT_FIELD = Instrumenter.RESERVED_PREFIX + "SiteCount";
+    static final String HEADER = "class\tsite\tmethod\tline\tcost\n";
+
+    private final String className;
+    private final StringBuilder rows = new StringBuilder();
+    private int size;
+
+    SiteTable(String className) {
+        this.className = className;
+    }
+
+    /**
+     * Adds a site.
+     *
+     * @return The id of the site.
+     */
+    int add(String method, int line, int cost) {
+        rows.append(className).append('\t').append(size).append('\t').append(method).append('\t').append(line)
+                .append('\t').append(cost).append('\n');
+        return size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    String getRows() {
+        return rows.toString();
+    }
+
+    /**
+     * Emits the fields of the histogram and its size. The size is a constant
+     * set once all the sites are known, so the histogram can be allocated at
+     * the beginning of the class initializer, before visiting the methods.
+     */
+    void emitFields(ClassVisitor cv) {
+        int access = Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC;
+        cv.visitField(access, SITES_FIELD, "[J", null, null).visitEnd();
+        cv.visitField(access, COUNT_FIELD, "I", null, size).visitEnd();
+    }
+
+    /**
+     * Emits a class initializer that only allocates the histogram, for the
+     * classes without one.
+     */
+    void emitInitializer(ClassVisitor cv) {
+        MethodVisitor mv = cv.visitMethod(Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, "<clinit>", "()V", null, null);
+        mv.visitCode();
+        emitInit(mv);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * Wraps the writer of the class initializer, to allocate the histogram
+     * before any of its code.
+     */
+    MethodVisitor initializing(MethodVisitor methodWriter) {
+        return new MethodVisitor(Opcodes.ASM9, methodWriter) {
+            @Override
+            public void visitCode() {
+                super.visitCode();
+                emitInit(mv);
+            }
+        };
+    }
+
+    private void emitInit(MethodVisitor mv) {
+        mv.visitFieldInsn(Opcodes.GETSTATIC, className, COUNT_FIELD, "I");
+        mv.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_LONG);
+        mv.visitFieldInsn(Opcodes.PUTSTATIC, className, SITES_FIELD, "[J");
+    }
+
+    /**
+     * Emits the increment of the slot of a site. It leaves the stack as it
+     * was.
+     */
+    void emitHit(MethodVisitor mv, int site) {
+        mv.visitFieldInsn(Opcodes.GETSTATIC, className, SITES_FIELD, "[J");
+        MethodInstrumenter.emitInt(mv, site);
+        mv.visitInsn(Opcodes.DUP2);
+        mv.visitInsn(Opcodes.LALOAD);
+        mv.visitInsn(Opcodes.LCONST_1);
+        mv.visitInsn(Opcodes.LADD);
+        mv.visitInsn(Opcodes.LASTORE);
+    }
+}
@@ -0,0 +1,146 @@
+package instrumenter;
+
+import org.objectweb.asm.ClassReader;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Class to collect the code size of each method before and after being
+ * instrumented.
+ * <p>
+ * HotSpot doesn't compile methods of more than 8000 bytes of code
+ * ({@code DontCompileHugeMethods}), inlines only much smaller ones, and the
+ * class file format limits methods to 65535 bytes, so the instrumentation can
+ * turn a bot that runs compiled into one that runs interpreted.
+ * <p>
+ * Rows of the report, separated by tabs, sorted by class:
+ * - Class name.
+ * - Method name and descriptor.
+ * - Code size, in bytes, before being instrumented.
+ * - Code size, in bytes, once instrumented.
+ * - Growth ratio.
+ * <p>
+ * Methods added by the instrumenter are not included. The report is safe to
+ * fill concurrently.
+ */
+final class SizeReport {
+    static final String HEADER = "class\tmethod\toriginal\tinstrumented\tgrowth\n";
+
+    private final Map<String, String> rows = new TreeMap<>();
+    private final Map<String, long[]> totals = new TreeMap<>();
+
+    /**
+     * Adds the methods of a class, replacing the ones added before, if any.
+     */
+    synchronized void add(String className, Map<String, Integer> originalSizes, Map<String, Integer> sizes) {
+        StringBuilder sb = new StringBuilder();
+        // Methods, original bytes, instrumented bytes
+        long[] classTotals = new long[3];
+        for (Map.Entry<String, Integer> entry : sizes.entrySet()) {
+            Integer originalSize = originalSizes.get(entry.getKey());
+            if (originalSize == null) continue;
+            int size = entry.getValue();
+            sb.append(className).append('\t').append(entry.getKey()).append('\t').append(originalSize).append('\t')
+                    .append(size).append('\t').append(String.format(Locale.ROOT, "%.2f", growth(originalSize, size)))
+                    .append('\n');
+            classTotals[0]++;
+            classTotals[1] += originalSize;
+            classTotals[2] += size;
+        }
+        rows.put(className, sb.toString());
+        totals.put(className, classTotals);
+    }
+
+    /**
+     * Returns the rows of a class, or an empty string if it has no methods.
+     */
+    synchronized String getRows(String className) {
+        return rows.getOrDefault(className, "");
+    }
+
+    /**
+     * Reads the code sizes of the methods from rows of the report, as
+     * returned by {@link #getRows}.
+     */
+    static void parseRows(String rows, Map<String, Integer> originalSizes, Map<String, Integer> sizes) {
+        for (String row : rows.split("\n")) {
+            if (row.isEmpty()) continue;
+            String[] columns = row.split("\t");
+            originalSizes.put(columns[1], Integer.parseInt(columns[2]));
+            sizes.put(columns[1], Integer.parseInt(columns[3]));
+        }
+    }
+
+    synchronized void write(Path file) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file)) {
+            writer.write(HEADER);
+            for (String classRows : rows.values()) writer.write(classRows);
+        }
+    }
+
+    /**
+     * Returns the total sizes, e.g., {@code 120 methods, 20000 -> 52000 bytes
+     * (x2.60)}.
+     */
+    @Override
+    public synchronized String toString() {
+        long methods = 0, originalBytes = 0, bytes = 0;
+        for (long[] classTotals : totals.values()) {
+            methods += classTotals[0];
+            originalBytes += classTotals[1];
+            bytes += classTotals[2];
+        }
+        return methods + " methods, " + originalBytes + " -> " + bytes + " bytes (x" +
+                String.format(Locale.ROOT, "%.2f", growth(originalBytes, bytes)) + ")";
+    }
+
+    private static double growth(long originalSize, long size) {
+        return originalSize == 0 ? 1 : (double) size / originalSize;
+    }
+
+    /**
+     * Reads the code size of each method of a class file, by method name and
+     * descriptor, in the order they are declared. Abstract and native
+     * methods, without code, are not included.
+     */
+    static Map<String, Integer> readCodeSizes(ClassReader reader) {
+        Map<String, Integer> sizes = new LinkedHashMap<>();
+        char[] buffer = new char[reader.getMaxStringLength()];
+        // Skip access flags, this class, super class and interfaces
+        int offset = reader.header + 6;
+        offset += 2 + 2 * reader.readUnsignedShort(offset);
+        // Skip fields
+        int fieldsCount = reader.readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < fieldsCount; i++) offset = skipAttributes(reader, offset + 6);
+        // Methods: access flags, name, descriptor and attributes
+        int methodsCount = reader.readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < methodsCount; i++) {
+            String method = reader.readUTF8(offset + 2, buffer) + reader.readUTF8(offset + 4, buffer);
+            offset += 6;
+            int attributesCount = reader.readUnsignedShort(offset);
+            offset += 2;
+            for (int j = 0; j < attributesCount; j++) {
+                // The code length goes after the max stack and max locals
+                if (reader.readUTF8(offset, buffer).equals("Code")) sizes.put(method, reader.readInt(offset + 10));
+                offset += 6 + reader.readInt(offset + 2);
+            }
+        }
+        return sizes;
+    }
+
+    private static int skipAttributes(ClassReader reader, int offset) {
+        int attributesCount = reader.readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < attributesCount; i++) offset += 6 + reader.readInt(offset + 2);
+        return offset;
+    }
+}
@@ -0,0 +1,23 @@
+package instrumenter;
+
+/**
+ * Exception thrown when the instrumented code does not follow the rules (e.g.,
+ * it uses a prohibited class or method).
+ * <p>
+ * The message describes the violation, ready to be shown to the user, and the
+ * symbol is the offending name (e.g., the class or method used), if any.
+ */
+class ViolationException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    final String symbol;
+
+    ViolationException(String message) {
+        this(message, null);
+    }
+
+    ViolationException(String message, String symbol) {
+        super(message);
+        this.symbol = symbol;
+    }
+}
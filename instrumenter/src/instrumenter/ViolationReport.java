@@ -0,0 +1,73 @@
+package instrumenter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Class to collect all the violations of a package, instead of stopping at the
+ * first one, so that they can be fixed at once.
+ * <p>
+ * The report is written as a JSON object with the fields:
+ * - {@code count}: The number of violations.
+ * - {@code classes}: The number of classes with violations.
+ * - {@code violations}: The violations, sorted by class, each one with its
+ * {@code class}, {@code method} (name and descriptor, or null if outside a
+ * method), {@code symbol} (the offending name, e.g., the class or method
+ * used) and {@code message}.
+ * <p>
+ * The report is safe to fill concurrently.
+ */
+final class ViolationReport {
+    private final Map<String, List<Map<String, Object>>> violations = new TreeMap<>();
+    private int count;
+
+    synchronized void add(String className, String method, ViolationException e) {
+        Map<String, Object> violation = new LinkedHashMap<>();
+        violation.put("class", className);
+        violation.put("method", method);
+        violation.put("symbol", e.symbol);
+        violation.put("message", e.getMessage());
+        // The same violation repeated in a method (e.g., a prohibited class used twice) is reported once
+        List<Map<String, Object>> classViolations = violations.computeIfAbsent(className, k -> new ArrayList<>());
+        if (classViolations.contains(violation)) return;
+        classViolations.add(violation);
+        count++;
+    }
+
+    synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Returns the messages of the violations, sorted by class.
+     */
+    synchronized List<String> getMessages() {
+        List<String> messages = new ArrayList<>();
+        for (List<Map<String, Object>> classViolations : violations.values()) {
+            for (Map<String, Object> violation : classViolations) messages.add((String) violation.get("message"));
+        }
+        return messages;
+    }
+
+    synchronized void write(Path file) throws IOException {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("count", count);
+        report.put("classes", violations.size());
+        List<Map<String, Object>> all = new ArrayList<>();
+        for (List<Map<String, Object>> classViolations : violations.values()) all.addAll(classViolations);
+        report.put("violations", all);
+        Files.writeString(file, Json.write(report) + "\n");
+    }
+
+    /**
+     * Returns the number of violations and classes, e.g., {@code 3 violations
+     * in 2 classes}.
+     */
+    @Override
+    public synchronized String toString() {
+        return count + (count == 1 ? " violation" : " violations") + " in " + violations.size() +
+                (violations.size() == 1 ? " class" : " classes");
+    }
+}